@@ -0,0 +1,14 @@
+package it.mgt.uti.jpajsonsearch;
+
+/**
+ * Access to the package private JPQL emitter, so benchmarks can measure it apart from parsing and optimization.
+ */
+public class JpaJsonSearchEmitter {
+
+    private JpaJsonSearchEmitter() {
+    }
+
+    public static JpaJsonSearchTemplate emit(JpaJsonSearch<?> search) {
+        return search.emit();
+    }
+}
@@ -0,0 +1,37 @@
+package it.mgt.uti.jpajsonsearch.benchmark;
+
+import it.mgt.uti.jpajsonsearch.JpaJsonSearch;
+import it.mgt.uti.jpajsonsearch.JpaJsonSearchEmitter;
+import it.mgt.uti.jpajsonsearch.JpaJsonSearchTemplate;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JPQL generation from an already parsed and optimized filter tree, no database involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildJpqlBenchmark {
+
+    @Param({ "MEDIUM", "DEEP", "WIDE", "IN_LIST" })
+    public String document;
+
+    private JpaJsonSearch<Person> search;
+
+    // Compiling once optimizes the tree in place, every invocation then emits the same tree
+    @Setup(Level.Trial)
+    public void setup() {
+        search = Fixtures.search(null).parse(Fixtures.document(document));
+        search.compile();
+    }
+
+    @Benchmark
+    public JpaJsonSearchTemplate buildJpql() {
+        return JpaJsonSearchEmitter.emit(search);
+    }
+}
@@ -0,0 +1,30 @@
+package it.mgt.uti.jpajsonsearch.benchmark;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+@Entity
+public class City {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    private String name;
+
+    public City() {
+    }
+
+    public City(String name) {
+        this.name = name;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,71 @@
+package it.mgt.uti.jpajsonsearch.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import it.mgt.uti.jpajsonsearch.JpaJsonSearchResult;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end parse, build and execution against an embedded HSQLDB populated with a generated dataset.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionBenchmark {
+
+    @Param({ "100000" })
+    public int rows;
+
+    @Param({ "SMALL", "MEDIUM" })
+    public String document;
+
+    private EntityManagerFactory emf;
+    private EntityManager em;
+    private JsonNode jsonNode;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        emf = Fixtures.populate(rows);
+        jsonNode = Fixtures.document(document);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        em = emf.createEntityManager();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        em.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        emf.close();
+    }
+
+    @Benchmark
+    public List<Person> find() {
+        em.clear();
+        return Fixtures.search(em).parse(jsonNode).find();
+    }
+
+    @Benchmark
+    public Number count() {
+        em.clear();
+        return Fixtures.search(em).parse(jsonNode).count();
+    }
+
+    @Benchmark
+    public JpaJsonSearchResult<Person> result() {
+        em.clear();
+        return Fixtures.search(em).parse(jsonNode).result();
+    }
+}
@@ -0,0 +1,180 @@
+package it.mgt.uti.jpajsonsearch.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import it.mgt.uti.jpajsonsearch.JpaJsonSearch;
+import it.mgt.uti.jpajsonsearch.JpaJsonSearchSchema;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.Collections;
+
+final class Fixtures {
+
+    private final static ObjectMapper objectMapper = new ObjectMapper();
+
+    final static String[] NAMES = { "John", "Jane", "Mark", "Mary", "Paul", "Anna", "Luke", "Emma" };
+    final static String[] SURNAMES = { "Johnson", "Smith", "Anderson", "Brown", "Wilson", "Jackson", "Harrison" };
+    final static int CITIES = 100;
+
+    private Fixtures() {
+    }
+
+    final static JpaJsonSearchSchema<Person> SCHEMA = JpaJsonSearchSchema.builder(Person.class)
+            .alias("p")
+            .from("Person p")
+            .addParameter("id", "p.id", Long.class)
+            .addParameter("name", "p.name", String.class)
+            .addParameter("surname", "p.surname", String.class)
+            .addParameter("sequence", "p.sequence", Integer.class)
+            .addParameter("city", "p.city.name", String.class)
+            .build();
+
+    static JpaJsonSearch<Person> search(EntityManager em) {
+        return new JpaJsonSearch<>(em, SCHEMA);
+    }
+
+    private static ObjectNode condition(String name, String operator, Object value) {
+        ObjectNode operatorNode = objectMapper.createObjectNode();
+        operatorNode.set(operator, objectMapper.valueToTree(value));
+
+        ObjectNode conditionNode = objectMapper.createObjectNode();
+        conditionNode.set(name, operatorNode);
+
+        return conditionNode;
+    }
+
+    private static ObjectNode condition(String name, String operator) {
+        return objectMapper.createObjectNode()
+                .put(name, operator);
+    }
+
+    private static ObjectNode logical(String conjunction, ArrayNode filters) {
+        ObjectNode logicalNode = objectMapper.createObjectNode();
+        logicalNode.set(conjunction, filters);
+
+        return logicalNode;
+    }
+
+    private static ObjectNode search(ArrayNode filter) {
+        ObjectNode searchNode = objectMapper.createObjectNode();
+        searchNode.set("filter", filter);
+        searchNode.put("page", 2);
+        searchNode.put("pageSize", 20);
+        searchNode.set("sort", objectMapper.createArrayNode()
+                .add(objectMapper.createObjectNode().put("surname", "ASC"))
+                .add(objectMapper.createObjectNode().put("sequence", "DESC")));
+
+        return searchNode;
+    }
+
+    static JsonNode small() {
+        return search(objectMapper.createArrayNode()
+                .add(condition("surname", "$lk", "%son")));
+    }
+
+    static JsonNode medium() {
+        ArrayNode or = objectMapper.createArrayNode()
+                .add(condition("sequence", "$gt", 5000))
+                .add(condition("sequence", "$eq", -10))
+                .add(logical("$and", objectMapper.createArrayNode()
+                        .add(condition("sequence", "$bt", new int[] { 100, 900 }))
+                        .add(condition("name", "$in", NAMES))));
+
+        return search(objectMapper.createArrayNode()
+                .add(logical("$or", or))
+                .add(condition("surname", "$lk", "%son"))
+                .add(condition("city", "$neq", "City 7"))
+                .add(condition("name", "$nnull")));
+    }
+
+    static JsonNode deep(int depth) {
+        ArrayNode filters = objectMapper.createArrayNode()
+                .add(condition("sequence", "$gte", depth));
+
+        for (int i = 0; i < depth; ++i) {
+            filters = objectMapper.createArrayNode()
+                    .add(condition("sequence", "$neq", i))
+                    .add(logical(i % 2 == 0 ? "$and" : "$or", filters));
+        }
+
+        return search(filters);
+    }
+
+    static JsonNode wide(int width) {
+        ArrayNode or = objectMapper.createArrayNode();
+        for (int i = 0; i < width; ++i)
+            or.add(condition("sequence", "$eq", i));
+
+        return search(objectMapper.createArrayNode()
+                .add(logical("$or", or)));
+    }
+
+    static JsonNode inList(int size) {
+        long[] ids = new long[size];
+        for (int i = 0; i < size; ++i)
+            ids[i] = i;
+
+        return search(objectMapper.createArrayNode()
+                .add(condition("id", "$in", ids)));
+    }
+
+    static JsonNode document(String document) {
+        switch (document) {
+            case "SMALL":
+                return small();
+            case "MEDIUM":
+                return medium();
+            case "DEEP":
+                return deep(50);
+            case "WIDE":
+                return wide(500);
+            case "IN_LIST":
+                return inList(10000);
+            default:
+                throw new IllegalArgumentException("Unknown " + document + " document");
+        }
+    }
+
+    static EntityManagerFactory populate(int rows) {
+        return populate(rows, "benchmarks");
+    }
+
+    // Each database name is a distinct embedded HSQLDB instance
+    static EntityManagerFactory populate(int rows, String database) {
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory("benchmarks",
+                Collections.singletonMap("javax.persistence.jdbc.url", "jdbc:hsqldb:mem:" + database));
+
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+
+            City[] cities = new City[CITIES];
+            for (int i = 0; i < CITIES; ++i) {
+                cities[i] = new City("City " + i);
+                em.persist(cities[i]);
+            }
+
+            for (int i = 0; i < rows; ++i) {
+                em.persist(new Person(NAMES[i % NAMES.length], SURNAMES[i % SURNAMES.length], i, cities[i % CITIES]));
+
+                if (i % 500 == 0) {
+                    em.flush();
+                    em.clear();
+                    for (int j = 0; j < CITIES; ++j)
+                        cities[j] = em.getReference(City.class, cities[j].getId());
+                }
+            }
+
+            em.getTransaction().commit();
+        }
+        finally {
+            em.close();
+        }
+
+        return emf;
+    }
+}
@@ -0,0 +1,42 @@
+package it.mgt.uti.jpajsonsearch.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import it.mgt.uti.jpajsonsearch.JpaJsonSearch;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of filter documents into the filter tree, no database involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({ "SMALL", "MEDIUM", "DEEP" })
+    public String document;
+
+    private JsonNode jsonNode;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        jsonNode = Fixtures.document(document);
+        bytes = jsonNode.toString().getBytes();
+    }
+
+    @Benchmark
+    public JpaJsonSearch<Person> parse() {
+        return Fixtures.search(null).parse(jsonNode);
+    }
+
+    @Benchmark
+    public JpaJsonSearch<Person> parseStream() {
+        return Fixtures.search(null).parse(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,50 @@
+package it.mgt.uti.jpajsonsearch.benchmark;
+
+import javax.persistence.*;
+
+@Entity
+public class Person {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    private String name;
+
+    private String surname;
+
+    private Integer sequence;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    private City city;
+
+    public Person() {
+    }
+
+    public Person(String name, String surname, Integer sequence, City city) {
+        this.name = name;
+        this.surname = surname;
+        this.sequence = sequence;
+        this.city = city;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSurname() {
+        return surname;
+    }
+
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    public City getCity() {
+        return city;
+    }
+}
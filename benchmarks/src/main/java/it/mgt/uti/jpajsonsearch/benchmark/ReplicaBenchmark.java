@@ -0,0 +1,97 @@
+package it.mgt.uti.jpajsonsearch.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import it.mgt.uti.jpajsonsearch.JpaJsonSearchBalancingPolicy;
+import it.mgt.uti.jpajsonsearch.JpaJsonSearchReplicaRouter;
+import it.mgt.uti.jpajsonsearch.JpaJsonSearchResult;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches routed from a primary to read replicas, each an embedded HSQLDB instance populated with the same dataset.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ReplicaBenchmark {
+
+    @Param({ "10000" })
+    public int rows;
+
+    @Param({ "2" })
+    public int replicas;
+
+    @Param({ "PRIMARY", "ROUND_ROBIN", "LEAST_IN_FLIGHT" })
+    public String routing;
+
+    private EntityManagerFactory primary;
+    private List<EntityManagerFactory> replicaFactories;
+    private JpaJsonSearchReplicaRouter router;
+    private JsonNode jsonNode;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        EntityManager em;
+
+        @Setup(Level.Iteration)
+        public void setup(ReplicaBenchmark benchmark) {
+            em = benchmark.primary.createEntityManager();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            em.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        primary = Fixtures.populate(rows, "primary");
+
+        replicaFactories = new ArrayList<>();
+        for (int i = 0; i < replicas; ++i)
+            replicaFactories.add(Fixtures.populate(rows, "replica" + i));
+
+        switch (routing) {
+            case "ROUND_ROBIN":
+                router = new JpaJsonSearchReplicaRouter(replicaFactories, JpaJsonSearchBalancingPolicy.roundRobin());
+                break;
+            case "LEAST_IN_FLIGHT":
+                router = new JpaJsonSearchReplicaRouter(replicaFactories, JpaJsonSearchBalancingPolicy.leastInFlight());
+                break;
+            default:
+                router = null;
+                break;
+        }
+
+        jsonNode = Fixtures.document("MEDIUM");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        for (EntityManagerFactory emf : replicaFactories)
+            emf.close();
+
+        primary.close();
+    }
+
+    @Benchmark
+    public JpaJsonSearchResult<Person> result(ThreadState state) {
+        state.em.clear();
+        return Fixtures.search(state.em)
+                .entityManagerFactory(primary)
+                .replicaRouter(router)
+                .parse(jsonNode)
+                .result();
+    }
+}
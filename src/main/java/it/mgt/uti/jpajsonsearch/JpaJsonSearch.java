@@ -1,34 +1,106 @@
 package it.mgt.uti.jpajsonsearch;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import it.mgt.util.jpa.JpaUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.persistence.AttributeNode;
+import javax.persistence.Entity;
+import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Subgraph;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.SingularAttribute;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class JpaJsonSearch<T> {
 
+    public enum ReferenceMode {
+
+        LOAD,
+        ID
+
+    }
+
     private final static Logger logger = LoggerFactory.getLogger(JpaJsonSearch.class);
 
+    // Whether a class is an entity, looked up by reflection once per class instead of once per bound value
+    private final static ClassValue<Boolean> ENTITY_CLASSES = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return JpaUtils.getAnnotation(type, Entity.class) != null;
+        }
+    };
+
+    private final static JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
     final static String SPACE = " ";
     final static String COMMA = ", ";
     final static String COLON = ":";
+    final static String SEMICOLON = ";";
     final static String SELECT = "SELECT ";
     final static String COUNT = "COUNT";
     final static String DISTINCT = "DISTINCT ";
     final static String FROM = " FROM ";
     final static String WHERE = " WHERE ";
     final static String ORDER_BY = " ORDER BY ";
+    final static String GROUP_BY = " GROUP BY ";
     final static String OPEN_PARENTHESIS = "(";
     final static String CLOSE_PARENTHESIS = ")";
     final static String PERCENT = "%";
+    final static String LOWER = "LOWER(";
+    // Not the backslash: MySQL and MariaDB read it as escaping the closing quote of the literal
+    final static char ESCAPE_CHAR = '!';
+    final static String ESCAPE = " ESCAPE '" + ESCAPE_CHAR + "'";
     final static String AND = " AND ";
+    final static String OR = " OR ";
+    final static String EQUAL = " = ";
+    final static String DOT = ".";
+    final static String ASC = " ASC";
+    final static String KEYSET = " KEYSET";
+    final static String AFTER = "after";
+    final static String IN = " IN ";
+    final static String FETCH_SIZE_HINT = "org.hibernate.fetchSize";
+    final static String SELECT_SHAPE = " SELECT ";
+    final static String AS = " AS ";
+    final static String SELECTION_ALIAS = "sel_";
+    final static String NEW = "NEW ";
+    final static String TWO_PHASE = " TWO_PHASE";
+    final static String NOT = "NOT ";
+    final static String FETCH = " FETCH ";
+    final static String LOAD = " LOAD";
+    final static String PROFILE = " PROFILE ";
+    final static String FETCH_GRAPH_HINT = "javax.persistence.fetchgraph";
+    final static String LOAD_GRAPH_HINT = "javax.persistence.loadgraph";
+    final static String IDS = "ids";
+    final static String JOIN = "JOIN";
+    final static Pattern JOIN_FETCH = Pattern.compile("\\bJOIN\\s+FETCH\\b", Pattern.CASE_INSENSITIVE);
+    final static String REFERENCE_ALIAS = "r";
 
     EntityManager em;
+    EntityManagerFactory emf;
 
     private String alias;
     private String fromJpql;
@@ -36,25 +108,61 @@ public class JpaJsonSearch<T> {
     private Class<T> type;
     private int page = 0;
     private int pageSize = 10;
+    private boolean keyset;
+    private String after;
+    private JpaJsonSearchCountStrategy countStrategy = JpaJsonSearchCountStrategy.EXACT;
+    private ReferenceMode referenceMode = ReferenceMode.LOAD;
+    private boolean twoPhase;
+    private List<String> fetches = new ArrayList<>();
+    private String fetchGraphName;
+    private boolean loadGraph;
+    private EntityGraph<?> fetchGraph;
+    private boolean fetchTwoPhase;
+    private boolean fetchDistinct;
+    private boolean optimize = true;
+    private JpaJsonSearchInListStrategy inListStrategy = JpaJsonSearchInListStrategy.NONE;
+    private List<JpaJsonSearchListener> listeners = Collections.emptyList();
+    private long parseNanos = -1;
 
     Map<String, JpaJsonSearchParameter> parametersMap = new HashMap<>();
+    private boolean sharedParameters;
     private JpaJsonSearchFilterLogical<T> rootFilter = new JpaJsonSearchFilterLogical<>(this, null, JpaJsonSearchFilterLogical.Conjunction.AND);
     private List<JpaJsonSearchSort> sorts = new ArrayList<>();
-    private Set<String> parameterNames = new HashSet<>();
+    private List<String> selections = new ArrayList<>();
+    private int parameterIndex;
+    private JpaJsonSearchTemplate template;
+    private JpaJsonSearchTemplateCache templateCache;
+    private JpaJsonSearchResultCache resultCache;
+    private JpaJsonSearchCoalescer coalescer;
+    private JpaJsonSearchExecutionProfile executionProfile = JpaJsonSearchExecutionProfile.DEFAULT;
+    private JpaJsonSearchLimits limits = JpaJsonSearchLimits.NONE;
+    private JpaJsonSearchReplicaRouter replicaRouter;
+    private boolean requirePrimary;
+    private int parsedConditions;
 
     public JpaJsonSearch(EntityManager em, Class<T> type) {
         this.em = em;
         this.type = type;
     }
 
+    public JpaJsonSearch(EntityManager em, JpaJsonSearchSchema<T> schema) {
+        this.em = em;
+        this.type = schema.getType();
+        this.alias = schema.getAlias();
+        this.fromJpql = schema.getFrom();
+
+        // Shared with the schema until a parameter is added
+        this.parametersMap = schema.getParametersMap();
+        this.sharedParameters = true;
+    }
+
     String buildParameterName(String name) {
-        String parameterName;
-        do {
-            parameterName = name + "_" + Math.round(Math.random() * 100);
-        } while (parameterNames.contains(parameterName));
-        parameterNames.add(parameterName);
+        return name + "_" + parameterIndex++;
+    }
 
-        return parameterName;
+    public JpaJsonSearch<T> entityManagerFactory(EntityManagerFactory emf) {
+        this.emf = emf;
+        return this;
     }
 
     public String getAlias() {
@@ -76,10 +184,25 @@ public class JpaJsonSearch<T> {
     }
 
     public JpaJsonSearch<T> addParameter(String name, String path, Class<?> type) {
+        if (sharedParameters) {
+            parametersMap = new HashMap<>(parametersMap);
+            sharedParameters = false;
+        }
+
         this.parametersMap.put(name, new JpaJsonSearchParameter(path, type));
         return this;
     }
 
+    public JpaJsonSearch<T> addCollectionParameter(String name, String path, String elementAlias) {
+        if (sharedParameters) {
+            parametersMap = new HashMap<>(parametersMap);
+            sharedParameters = false;
+        }
+
+        this.parametersMap.put(name, new JpaJsonSearchParameter(path, elementAlias));
+        return this;
+    }
+
     public JpaJsonSearchFilterLogical filter() {
         return rootFilter;
     }
@@ -98,11 +221,103 @@ public class JpaJsonSearch<T> {
         return this;
     }
 
+    public List<String> getSelections() {
+        return selections;
+    }
+
+    public JpaJsonSearch<T> select(String... names) {
+        for (String name : names) {
+            if (!parametersMap.containsKey(name))
+                throw new JpaJsonSearchException("Parameter " + name + " not found");
+
+            selections.add(name);
+        }
+
+        return this;
+    }
+
+    public JpaJsonSearch<T> clearSelections() {
+        selections.clear();
+        return this;
+    }
+
+    public List<String> getFetches() {
+        return fetches;
+    }
+
+    public JpaJsonSearch<T> fetch(String... names) {
+        for (String name : names) {
+            if (!parametersMap.containsKey(name))
+                throw new JpaJsonSearchException("Parameter " + name + " not found");
+
+            fetches.add(name);
+        }
+
+        return this;
+    }
+
+    public JpaJsonSearch<T> clearFetches() {
+        fetches.clear();
+        return this;
+    }
+
+    public JpaJsonSearch<T> fetchGraph(String name) {
+        fetchGraphName = name;
+        return this;
+    }
+
+    public JpaJsonSearch<T> loadGraph(boolean value) {
+        loadGraph = value;
+        return this;
+    }
+
     public JpaJsonSearch<T> distinct(boolean value) {
         distinct = value;
         return this;
     }
 
+    public JpaJsonSearch<T> twoPhase(boolean value) {
+        twoPhase = value;
+        return this;
+    }
+
+    public JpaJsonSearch<T> optimize(boolean value) {
+        optimize = value;
+        return this;
+    }
+
+    public JpaJsonSearch<T> inListStrategy(JpaJsonSearchInListStrategy inListStrategy) {
+        this.inListStrategy = inListStrategy;
+        return this;
+    }
+
+    public JpaJsonSearchInListStrategy getInListStrategy() {
+        return inListStrategy;
+    }
+
+    public JpaJsonSearch<T> replicaRouter(JpaJsonSearchReplicaRouter replicaRouter) {
+        this.replicaRouter = replicaRouter;
+        return this;
+    }
+
+    public JpaJsonSearch<T> requirePrimary(boolean requirePrimary) {
+        this.requirePrimary = requirePrimary;
+        return this;
+    }
+
+    public JpaJsonSearch<T> limits(JpaJsonSearchLimits limits) {
+        this.limits = limits;
+        return this;
+    }
+
+    public JpaJsonSearchLimits getLimits() {
+        return limits;
+    }
+
+    void countParsedCondition() {
+        limits.checkConditions(++parsedConditions);
+    }
+
     public JpaJsonSearch<T> page(int page) {
         this.page = page;
         return this;
@@ -113,168 +328,923 @@ public class JpaJsonSearch<T> {
         return this;
     }
 
+    public JpaJsonSearch<T> keyset(boolean value) {
+        keyset = value;
+        return this;
+    }
+
+    public JpaJsonSearch<T> after(String cursor) {
+        this.keyset = true;
+        this.after = cursor;
+        return this;
+    }
+
+    public JpaJsonSearch<T> countStrategy(JpaJsonSearchCountStrategy countStrategy) {
+        this.countStrategy = countStrategy;
+        return this;
+    }
+
+    public JpaJsonSearch<T> referenceMode(ReferenceMode referenceMode) {
+        this.referenceMode = referenceMode;
+        return this;
+    }
+
+    public JpaJsonSearch<T> listeners(List<JpaJsonSearchListener> listeners) {
+        this.listeners = listeners;
+        return this;
+    }
+
+    public JpaJsonSearch<T> template(JpaJsonSearchTemplate template) {
+        this.template = template;
+        return this;
+    }
+
+    public JpaJsonSearch<T> templateCache(JpaJsonSearchTemplateCache templateCache) {
+        this.templateCache = templateCache;
+        return this;
+    }
+
+    public JpaJsonSearch<T> resultCache(JpaJsonSearchResultCache resultCache) {
+        this.resultCache = resultCache;
+        return this;
+    }
+
+    public JpaJsonSearch<T> coalescer(JpaJsonSearchCoalescer coalescer) {
+        this.coalescer = coalescer;
+        return this;
+    }
+
+    public JpaJsonSearch<T> executionProfile(JpaJsonSearchExecutionProfile executionProfile) {
+        this.executionProfile = executionProfile;
+        return this;
+    }
+
+    public JpaJsonSearchTemplate compile() {
+        logger.trace("Compiling template");
+
+        optimizeFilter();
+        resolveReferences();
+        resolveFetchGraph();
+
+        return emit();
+    }
+
+    // JPQL generation alone, from a filter tree already optimized and resolved
+    JpaJsonSearchTemplate emit() {
+        JpaJsonSearchJpqlAndParams where = buildWhere();
+        return new JpaJsonSearchTemplate(buildShape(null), buildJpql(false, null, where), buildJpql(true, null, where));
+    }
+
     public JpaJsonSearch<T> parse(JsonNode jsonNode) {
+        try {
+            JsonParser parser = jsonNode.traverse();
+            parser.nextToken();
+            return parse(parser);
+        }
+        catch (IOException e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    public JpaJsonSearch<T> parse(InputStream inputStream) {
+        try (JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+            parser.nextToken();
+            return parse(parser);
+        }
+        catch (IOException e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    public JpaJsonSearch<T> parse(JsonParser parser) {
         logger.trace("Parsing search");
 
-        if (!jsonNode.isObject())
-            throw new JpaJsonSearchException("Expected root node to be an object node");
+        long start = System.nanoTime();
+
+        try {
+            if (parser.currentToken() == null)
+                parser.nextToken();
+
+            if (parser.currentToken() != JsonToken.START_OBJECT)
+                throw new JpaJsonSearchException("Expected root node to be an object node");
+
+            boolean hasPage = false;
+            boolean hasAfter = false;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+
+                switch (field) {
+                    case "filter":
+                        if (token != JsonToken.VALUE_NULL)
+                            rootFilter.parse(parser);
+                        break;
+                    case "pageSize":
+                        if (token != JsonToken.VALUE_NUMBER_INT)
+                            throw new JpaJsonSearchException("Expected pageSize node to be an integral number");
+
+                        pageSize = parser.getIntValue();
+                        break;
+                    case "page":
+                        if (token != JsonToken.VALUE_NUMBER_INT)
+                            throw new JpaJsonSearchException("Expected page node to be an integral number");
+
+                        page = parser.getIntValue();
+                        hasPage = true;
+                        break;
+                    case "after":
+                        if (token != JsonToken.VALUE_NULL && token != JsonToken.VALUE_STRING)
+                            throw new JpaJsonSearchException("Expected after node to be a string");
+
+                        after(token == JsonToken.VALUE_NULL ? null : parser.getText());
+                        hasAfter = true;
+                        break;
+                    case "count":
+                        countStrategy = JpaJsonSearchCountStrategy.parse(parser);
+                        break;
+                    case "sort":
+                        parseSorts(parser);
+                        break;
+                    case "select":
+                        parseSelections(parser);
+                        break;
+                    case "fetch":
+                        parseFetches(parser);
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+            }
+
+            if (hasPage && hasAfter)
+                throw new JpaJsonSearchException("Expected either page or after node");
+        }
+        catch (IOException e) {
+            throw new JpaJsonSearchException(e);
+        }
+
+        admit();
+
+        // Notified once the shape is known, when the query is prepared
+        parseNanos = System.nanoTime() - start;
+
+        return this;
+    }
+
+    private void admit() {
+        logger.trace("Admitting search");
+
+        int limitedPageSize = limits.checkPageSize(isPaged() ? pageSize : -1);
+        if (limitedPageSize >= 0) {
+            page = Math.max(page, 0);
+            pageSize = limitedPageSize;
+        }
 
+        long offset = isPaged() && !keyset ? (long) page * pageSize : 0;
+        limits.checkOffset(offset);
 
-        ObjectNode objectNode = (ObjectNode) jsonNode;
-        rootFilter.parse(objectNode.get("filter"));
+        List<JpaJsonSearchFilterCondition<?>> conditions = new ArrayList<>();
+        rootFilter.collectConditions(conditions);
 
-        JsonNode subNode = objectNode.get("pageSize");
-        if (subNode != null) {
-            if (!subNode.isIntegralNumber())
-                throw new JpaJsonSearchException("Expected pageSize node to be an integral number");
+        int cost = JpaJsonSearchLimits.estimateCost(conditions, sorts.size(), offset);
+        limits.checkCost(cost);
 
-            pageSize = subNode.asInt();
+        if (limits.isDegraded(cost) && countStrategy.getType() != JpaJsonSearchCountStrategy.Type.NONE) {
+            logger.debug("Search cost " + cost + " degrades count to " + limits.getDegradeCountStrategy().getType());
+            countStrategy = limits.getDegradeCountStrategy();
         }
+    }
+
+    private void parseSelections(JsonParser parser) throws IOException {
+        logger.trace("Parsing selections");
+
+        if (parser.currentToken() == JsonToken.VALUE_NULL)
+            return;
 
-        subNode = objectNode.get("page");
-        if (subNode != null) {
-            if (!subNode.isIntegralNumber())
-                throw new JpaJsonSearchException("Expected page node to be an integral number");
+        if (parser.currentToken() != JsonToken.START_ARRAY)
+            throw new JpaJsonSearchException("Expected select node to be an array node");
 
-            page = subNode.asInt();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.VALUE_STRING)
+                throw new JpaJsonSearchException("Expected select node element to be a string");
+
+            select(parser.getText());
         }
+    }
 
-        parseSorts(objectNode.get("sort"));
+    private void parseFetches(JsonParser parser) throws IOException {
+        logger.trace("Parsing fetches");
 
-        return this;
+        if (parser.currentToken() == JsonToken.VALUE_NULL)
+            return;
+
+        if (parser.currentToken() != JsonToken.START_ARRAY)
+            throw new JpaJsonSearchException("Expected fetch node to be an array node");
+
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.VALUE_STRING)
+                throw new JpaJsonSearchException("Expected fetch node element to be a string");
+
+            fetch(parser.getText());
+        }
     }
 
-    private void parseSorts(JsonNode jsonNode) {
+    private void parseSorts(JsonParser parser) throws IOException {
         logger.trace("Parsing sorts");
 
-        if (jsonNode == null)
+        if (parser.currentToken() == JsonToken.VALUE_NULL)
             return;
 
-        if (!jsonNode.isArray())
+        if (parser.currentToken() != JsonToken.START_ARRAY)
             throw new JpaJsonSearchException("Expected root node to be an array node");
 
-        ArrayNode arrayNode = (ArrayNode) jsonNode;
-
-        for (Iterator<JsonNode> it = arrayNode.elements(); it.hasNext(); ) {
-            JsonNode e = it.next();
-            sorts.add(JpaJsonSearchSort.buildParse(this, e));
-        }
+        while (parser.nextToken() != JsonToken.END_ARRAY)
+            sorts.add(new JpaJsonSearchSort(this).parse(parser));
     }
 
-    private JpaJsonSearchJpqlAndParams buildJpql(boolean count) {
-        logger.trace("Executing JPQL");
+    private <E> String buildIdAttributeName(Class<E> type) {
+        EntityType<E> entityType = em.getMetamodel().entity(type);
+        if (!entityType.hasSingleIdAttribute())
+            throw new JpaJsonSearchException("Expected entity " + entityType.getName() + " to have a single id attribute");
 
-        JpaJsonSearchJpqlAndParams jpqlAndParams = new JpaJsonSearchJpqlAndParams(SELECT);
+        return entityType.getId(entityType.getIdType().getJavaType()).getName();
+    }
 
-        if (count) {
-            jpqlAndParams.append(COUNT)
-                    .append(OPEN_PARENTHESIS);
+    private String buildIdPath() {
+        return alias.trim() + DOT + buildIdAttributeName(type);
+    }
 
-            if (distinct)
-                jpqlAndParams.append(DISTINCT);
+    private void notifyListeners(JpaJsonSearchEvent.Phase phase, String shape, long nanos, long rows) {
+        if (listeners.isEmpty())
+            return;
 
-            jpqlAndParams.append(alias.trim())
-                    .append(CLOSE_PARENTHESIS);
+        JpaJsonSearchEvent event = new JpaJsonSearchEvent(type, shape, phase, nanos, rows);
+        for (JpaJsonSearchListener listener : listeners) {
+            try {
+                listener.onEvent(event);
+            }
+            catch (Exception e) {
+                logger.warn("Search listener failed", e);
+            }
         }
-        else {
-            if (distinct)
-                jpqlAndParams.append(DISTINCT);
+    }
 
-            jpqlAndParams.append(alias.trim());
+    private EntityGraph<T> buildFetchGraph(EntityManager em) {
+        logger.trace("Building fetch graph");
+
+        String prefix = alias.trim() + DOT;
+
+        List<String> paths = new ArrayList<>(fetches.size());
+        for (String name : fetches) {
+            String path = parametersMap.get(name).path;
+            if (!path.startsWith(prefix))
+                throw new JpaJsonSearchException("Expected path of fetched parameter " + name + " to start with the alias");
+
+            paths.add(path.substring(prefix.length()));
         }
 
-        jpqlAndParams.append(FROM)
-                .append(fromJpql.trim());
+        // Deeper paths first, so that shorter ones already added as subgraphs aren't added again as attributes
+        paths.sort(Comparator.comparingInt(String::length).reversed());
 
-        if (rootFilter.size() > 0)
-            jpqlAndParams.append(WHERE)
-                .append(rootFilter.buildJpql());
+        EntityGraph<T> graph = em.createEntityGraph(type);
+        Map<String, Subgraph<?>> subgraphs = new HashMap<>();
+        for (String path : paths) {
+            if (subgraphs.containsKey(path))
+                continue;
 
-        if (count)
-            return jpqlAndParams;
+            String[] attributes = path.split("\\.");
 
-        if (sorts.size() > 0)
-            jpqlAndParams.append(ORDER_BY);
+            Subgraph<?> subgraph = null;
+            for (int i = 0; i < attributes.length - 1; ++i) {
+                String subpath = String.join(DOT, Arrays.asList(attributes).subList(0, i + 1));
 
-        boolean first = true;
-        for (JpaJsonSearchSort orderBy : sorts) {
-            if (first)
-                first = false;
+                Subgraph<?> parent = subgraph;
+                String attribute = attributes[i];
+                subgraph = subgraphs.computeIfAbsent(subpath, k -> parent == null ? graph.addSubgraph(attribute) : parent.addSubgraph(attribute));
+            }
+
+            String attribute = attributes[attributes.length - 1];
+            if (subgraph == null)
+                graph.addAttributeNodes(attribute);
             else
-                jpqlAndParams.append(COMMA);
+                subgraph.addAttributeNodes(attribute);
+        }
+
+        return graph;
+    }
+
+    private boolean fetchesCollection(Class<?> type, List<AttributeNode<?>> nodes) {
+        ManagedType<?> managedType = em.getMetamodel().managedType(type);
 
-            jpqlAndParams.append(orderBy.buildJpql());
+        for (AttributeNode<?> node : nodes) {
+            if (managedType.getAttribute(node.getAttributeName()).isCollection())
+                return true;
+
+            for (Subgraph<?> subgraph : node.getSubgraphs().values())
+                if (fetchesCollection(subgraph.getClassType(), subgraph.getAttributeNodes()))
+                    return true;
         }
 
-        return jpqlAndParams;
+        return false;
     }
 
-    private <V> TypedQuery<V> buildQuery(Class<V> type, boolean count) {
-        logger.trace("Building query");
+    private void resolveFetchGraph() {
+        fetchGraph = null;
+        fetchTwoPhase = false;
+        fetchDistinct = false;
+
+        if (fetches.isEmpty() && fetchGraphName == null)
+            return;
 
-        JpaJsonSearchJpqlAndParams jpqlAndParams = buildJpql(count);
+        if (!fetches.isEmpty() && fetchGraphName != null)
+            throw new JpaJsonSearchException("Expected either fetched parameters or a named entity graph");
 
-        logger.debug("Resulting JPQL: " + jpqlAndParams.jpql);
+        fetchGraph = fetchGraphName != null ? em.getEntityGraph(fetchGraphName) : buildFetchGraph(em);
 
-        TypedQuery<V> query = em.createQuery(jpqlAndParams.jpql.toString(), type);
-        for (Map.Entry<String, Object> e : jpqlAndParams.params.entrySet())
-            query.setParameter(e.getKey(), e.getValue());
+        boolean collection = fetchesCollection(type, fetchGraph.getAttributeNodes());
 
-        if (!count & (page >= 0 && pageSize >= 0)) {
-            query.setMaxResults(pageSize);
-            query.setFirstResult(page * pageSize);
-        }
+        // Fetching collections breaks row based pagination, and graphs only apply to queries selecting the entity,
+        // in both cases the page of ids is selected first and the graph applies when loading them
+        fetchTwoPhase = keyset || (isPaged() && collection);
 
-        return query;
+        // Unpaged, collections are fetched by the find query itself, which repeats the root for each element
+        fetchDistinct = !fetchTwoPhase && collection;
     }
 
-    public List<T> find() {
-        logger.trace("Executing find");
+    private void optimizeFilter() {
+        // Normalized trees give smaller predicates and fewer distinct shapes
+        if (optimize)
+            rootFilter.optimize();
+    }
 
-        try {
-            return buildQuery(type, false).getResultList();
+    private long resolveReferences() {
+        List<JpaJsonSearchFilterCondition<?>> conditions = new ArrayList<>();
+        rootFilter.collectConditions(conditions);
+
+        List<JpaJsonSearchFilterCondition<?>> pending = new ArrayList<>();
+        Map<Class<?>, Set<Object>> ids = new HashMap<>();
+        for (JpaJsonSearchFilterCondition<?> condition : conditions) {
+            if (!condition.isUnresolvedReference())
+                continue;
+
+            // Entities loaded by the primary can't be bound into queries run by a replica, routed searches compare ids
+            if (referenceMode == ReferenceMode.ID || isRouted()) {
+                condition.resolveReferencePath(buildIdAttributeName(condition.getReferenceType()));
+            }
+            else {
+                pending.add(condition);
+                ids.computeIfAbsent(condition.getReferenceType(), k -> new HashSet<>())
+                        .addAll(condition.getReferenceIds());
+            }
         }
-        catch (JpaJsonSearchException e) {
-            throw e;
-        }
-        catch (Exception e) {
-            throw new JpaJsonSearchException(e);
+
+        if (pending.isEmpty())
+            return -1;
+
+        logger.trace("Loading references");
+
+        long loaded = 0;
+        Map<Class<?>, Map<Object, ?>> entities = new HashMap<>();
+        for (Map.Entry<Class<?>, Set<Object>> e : ids.entrySet()) {
+            Map<Object, ?> typeEntities = loadReferences(e.getKey(), e.getValue());
+            entities.put(e.getKey(), typeEntities);
+            loaded += typeEntities.size();
         }
+
+        for (JpaJsonSearchFilterCondition<?> condition : pending)
+            condition.resolveReferences(entities.get(condition.getReferenceType()));
+
+        return loaded;
     }
 
-    public T findSingle() {
-        logger.trace("Executing find single");
+    private <E> Map<Object, E> loadReferences(Class<E> type, Set<Object> ids) {
+        // Bound like filter lists, so reference lookups get the same padding and chunking
+        List<List<?>> chunks = inListStrategy.split(new ArrayList<>(ids));
+        String idPath = REFERENCE_ALIAS + DOT + buildIdAttributeName(type);
 
-        try {
-            return buildQuery(type, false).getSingleResult();
-        }
-        catch (JpaJsonSearchException e) {
-            throw e;
+        StringBuilder jpql = new StringBuilder(SELECT + REFERENCE_ALIAS + FROM + em.getMetamodel().entity(type).getName() + SPACE + REFERENCE_ALIAS + WHERE);
+        for (int i = 0; i < chunks.size(); ++i) {
+            if (i > 0)
+                jpql.append(OR);
+
+            jpql.append(idPath).append(IN).append(COLON).append(IDS).append(i);
         }
-        catch (Exception e) {
-            throw new JpaJsonSearchException(e);
+
+        TypedQuery<E> query = em.createQuery(jpql.toString(), type);
+        for (int i = 0; i < chunks.size(); ++i)
+            query.setParameter(IDS + i, chunks.get(i));
+        executionProfile.apply(query);
+
+        List<E> resultList = query.getResultList();
+
+        PersistenceUnitUtil persistenceUnitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        Map<Object, E> entities = new HashMap<>();
+        for (E entity : resultList)
+            entities.put(persistenceUnitUtil.getIdentifier(entity), entity);
+
+        return entities;
+    }
+
+    // Keyset predicates compare sort values, checked before running any query rather than when encoding the cursor
+    private void checkKeysetSorts() {
+        for (JpaJsonSearchSort sort : sorts) {
+            JpaJsonSearchParameter parameter = sort.getParameter();
+
+            if (parameter.type != null && JpaUtils.getAnnotation(parameter.type, Entity.class) != null)
+                throw new JpaJsonSearchException("Keyset pagination doesn't support sorting on entity parameters");
+
+            if (isOptionalPath(parameter.path))
+                throw new JpaJsonSearchException("Keyset pagination doesn't support sorting on nullable path " + parameter.path);
         }
     }
 
-    public Number count() {
-        logger.trace("Executing count");
+    // Paths not starting with the alias, such as those of joins, can't be checked
+    private boolean isOptionalPath(String path) {
+        if (!path.startsWith(alias + DOT))
+            return false;
 
-        try {
-            return buildQuery(Number.class, true).getSingleResult();
+        ManagedType<?> managedType = em.getMetamodel().managedType(type);
+        String[] attributes = path.substring(alias.length() + 1).split(Pattern.quote(DOT));
+        for (int i = 0; i < attributes.length; ++i) {
+            Attribute<?, ?> attribute = managedType.getAttribute(attributes[i]);
+            if (!(attribute instanceof SingularAttribute))
+                return false;
+
+            SingularAttribute<?, ?> singularAttribute = (SingularAttribute<?, ?>) attribute;
+            if (singularAttribute.isOptional() && !singularAttribute.getJavaType().isPrimitive())
+                return true;
+
+            if (i < attributes.length - 1) {
+                if (!(singularAttribute.getType() instanceof ManagedType))
+                    return false;
+
+                managedType = (ManagedType<?>) singularAttribute.getType();
+            }
         }
-        catch (JpaJsonSearchException e) {
-            throw e;
+
+        return false;
+    }
+
+    private List<Object> decodeCursor() {
+        List<Class<?>> types = new ArrayList<>(sorts.size() + 1);
+        for (JpaJsonSearchSort sort : sorts)
+            types.add(sort.getParameter().type);
+
+        types.add(em.getMetamodel().entity(type).getIdType().getJavaType());
+
+        return JpaJsonSearchCursor.decode(after, types);
+    }
+
+    private void buildKeysetJpql(JpaJsonSearchJpqlAndParams jpql) {
+        logger.trace("Building keyset JPQL");
+
+        List<String> paths = new ArrayList<>(sorts.size() + 1);
+        List<String> comparisons = new ArrayList<>(sorts.size() + 1);
+        for (JpaJsonSearchSort sort : sorts) {
+            paths.add(sort.getParameter().path);
+            comparisons.add(sort.getOrder().keysetJpql);
         }
-        catch (Exception e) {
-            throw new JpaJsonSearchException(e);
+
+        paths.add(buildIdPath());
+        comparisons.add(JpaJsonSearchSort.Order.ASC.keysetJpql);
+
+        List<Object> values = decodeCursor();
+        List<String> names = new ArrayList<>(values.size());
+        for (int i = 0; i < values.size(); ++i)
+            names.add(buildParameterName(AFTER));
+
+        // (a > :a) OR (a = :a AND b > :b) OR (a = :a AND b = :b AND id > :id)
+        jpql.append(OPEN_PARENTHESIS);
+        for (int i = 0; i < paths.size(); ++i) {
+            if (i > 0)
+                jpql.append(OR);
+
+            jpql.append(OPEN_PARENTHESIS);
+
+            for (int j = 0; j < i; ++j)
+                jpql.append(paths.get(j))
+                        .append(EQUAL)
+                        .append(COLON)
+                        .append(names.get(j))
+                        .append(AND);
+
+            jpql.append(paths.get(i))
+                    .append(comparisons.get(i))
+                    .appendParameter(names.get(i), values.get(i))
+                    .append(CLOSE_PARENTHESIS);
         }
+
+        jpql.append(CLOSE_PARENTHESIS);
     }
 
-    public JpaJsonSearchResult<T> result() {
-        logger.trace("Executing result");
+    private JpaJsonSearchJpqlAndParams buildWhere() {
+        logger.trace("Building where JPQL");
 
-        try {
-            return new JpaJsonSearchResult<>(find(), count(), page, pageSize);
+        parameterIndex = 0;
+
+        JpaJsonSearchJpqlAndParams where = new JpaJsonSearchJpqlAndParams();
+        rootFilter.buildJpql(where);
+        return where;
+    }
+
+    private JpaJsonSearchJpqlAndParams buildJpql(boolean count, Class<?> projection, JpaJsonSearchJpqlAndParams where) {
+        logger.trace("Executing JPQL");
+
+        boolean ids = isTwoPhase(count, projection);
+
+        // Joined rows of a root are grouped into one id, sorted by the first of their values in each sort order
+        boolean grouped = ids && !keyset;
+
+        JpaJsonSearchJpqlAndParams jpqlAndParams = new JpaJsonSearchJpqlAndParams(fromJpql.length() + where.length() + 256)
+                .append(SELECT);
+
+        if (count && (countStrategy.getType() == JpaJsonSearchCountStrategy.Type.CAPPED || isProjectedCount(projection))) {
+            if (distinct)
+                jpqlAndParams.append(DISTINCT);
+
+            // Distinct projections are counted by their distinct selected rows, not by distinct roots
+            if (isProjectedCount(projection))
+                appendSelectionPaths(jpqlAndParams);
+            else
+                jpqlAndParams.append(buildIdPath());
+        }
+        else if (count) {
+            jpqlAndParams.append(COUNT)
+                    .append(OPEN_PARENTHESIS);
+
+            if (distinct)
+                jpqlAndParams.append(DISTINCT);
+
+            jpqlAndParams.append(alias.trim())
+                    .append(CLOSE_PARENTHESIS);
+        }
+        else if (projection != null) {
+            if (distinct)
+                jpqlAndParams.append(DISTINCT);
+
+            boolean constructor = projection != Object[].class && projection != Tuple.class;
+            if (constructor)
+                jpqlAndParams.append(NEW)
+                        .append(projection.getName())
+                        .append(OPEN_PARENTHESIS);
+
+            // Parameter names may be reserved words, tuples are aliased by position and renamed when read
+            for (int i = 0; i < selections.size(); ++i) {
+                if (i > 0)
+                    jpqlAndParams.append(COMMA);
+
+                jpqlAndParams.append(parametersMap.get(selections.get(i)).path);
+
+                if (projection == Tuple.class)
+                    jpqlAndParams.append(AS)
+                            .append(SELECTION_ALIAS)
+                            .append(String.valueOf(i));
+            }
+
+            if (constructor)
+                jpqlAndParams.append(CLOSE_PARENTHESIS);
+        }
+        else if (grouped) {
+            // The first phase of two phase paging selects ids, along with the sort values they are ordered by
+            jpqlAndParams.append(buildIdPath());
+
+            for (JpaJsonSearchSort sort : sorts) {
+                jpqlAndParams.append(COMMA);
+                sort.buildAggregateJpql(jpqlAndParams);
+            }
+        }
+        else {
+            if (distinct)
+                jpqlAndParams.append(DISTINCT);
+
+            jpqlAndParams.append(ids ? buildIdPath() : alias.trim());
+
+            if (keyset || ids) {
+                for (JpaJsonSearchSort sort : sorts)
+                    jpqlAndParams.append(COMMA)
+                            .append(sort.getParameter().path);
+            }
+
+            if (keyset)
+                jpqlAndParams.append(COMMA)
+                        .append(buildIdPath());
+        }
+
+        jpqlAndParams.append(FROM);
+
+        // Fetch joins aren't allowed when the root entity isn't selected
+        if (ids)
+            jpqlAndParams.append(JOIN_FETCH.matcher(fromJpql.trim()).replaceAll(JOIN));
+        else
+            jpqlAndParams.append(fromJpql.trim());
+
+        boolean seek = !count && keyset && after != null;
+
+        // The where clause is shared between the find and count queries, the keyset predicate is find only
+        if (!where.isEmpty() || seek)
+            jpqlAndParams.append(WHERE);
+
+        jpqlAndParams.append(where);
+
+        if (seek) {
+            if (!where.isEmpty())
+                jpqlAndParams.append(AND);
+
+            buildKeysetJpql(jpqlAndParams);
+        }
+
+        if (count)
+            return jpqlAndParams;
+
+        if (grouped)
+            jpqlAndParams.append(GROUP_BY)
+                    .append(buildIdPath());
+
+        if (sorts.size() > 0 || keyset)
+            jpqlAndParams.append(ORDER_BY);
+
+        boolean first = true;
+        for (JpaJsonSearchSort orderBy : sorts) {
+            if (first)
+                first = false;
+            else
+                jpqlAndParams.append(COMMA);
+
+            if (grouped)
+                orderBy.buildAggregateOrderJpql(jpqlAndParams);
+            else
+                orderBy.buildJpql(jpqlAndParams);
+        }
+
+        if (keyset) {
+            if (!first)
+                jpqlAndParams.append(COMMA);
+
+            jpqlAndParams.append(buildIdPath())
+                    .append(ASC);
+        }
+
+        return jpqlAndParams;
+    }
+
+    private void appendSelectionPaths(JpaJsonSearchJpqlAndParams jpqlAndParams) {
+        for (int i = 0; i < selections.size(); ++i) {
+            if (i > 0)
+                jpqlAndParams.append(COMMA);
+
+            jpqlAndParams.append(parametersMap.get(selections.get(i)).path);
+        }
+    }
+
+    private boolean isProjectedCount(Class<?> projection) {
+        return distinct && projection != null;
+    }
+
+    String buildShape(Class<?> projection) {
+        StringBuilder shape = new StringBuilder();
+
+        if (distinct)
+            shape.append(DISTINCT);
+
+        shape.append(alias.trim());
+
+        if (projection != null) {
+            shape.append(SELECT_SHAPE);
+
+            if (projection != Object[].class && projection != Tuple.class)
+                shape.append(NEW)
+                        .append(projection.getName())
+                        .append(SPACE);
+
+            for (String name : selections)
+                shape.append(name)
+                        .append(COLON)
+                        .append(parametersMap.get(name).path)
+                        .append(SEMICOLON);
+        }
+
+        shape
+                .append(FROM)
+                .append(fromJpql.trim())
+                .append(WHERE);
+
+        rootFilter.buildShape(shape);
+
+        shape.append(ORDER_BY);
+        for (JpaJsonSearchSort sort : sorts)
+            sort.buildShape(shape);
+
+        if (keyset) {
+            shape.append(KEYSET);
+
+            if (after != null)
+                shape.append(SPACE)
+                        .append(AFTER);
+        }
+
+        if (countStrategy.getType() == JpaJsonSearchCountStrategy.Type.CAPPED)
+            shape.append(SPACE)
+                    .append(countStrategy.getType().name());
+
+        if (fetchGraphName != null)
+            shape.append(FETCH)
+                    .append(fetchGraphName);
+
+        if (!fetches.isEmpty())
+            shape.append(FETCH)
+                    .append(String.join(COMMA, fetches));
+
+        if (loadGraph && (fetchGraphName != null || !fetches.isEmpty()))
+            shape.append(LOAD);
+
+        if (twoPhase || fetchTwoPhase)
+            shape.append(TWO_PHASE);
+
+        // Searches loading differently must not share templates, cached results or coalesced executions
+        if (executionProfile != JpaJsonSearchExecutionProfile.DEFAULT)
+            executionProfile.buildShape(shape.append(PROFILE));
+
+        return shape.toString();
+    }
+
+    private JpaJsonSearchTemplate resolveTemplate(String shape, Class<?> projection) {
+        if (template == null && templateCache == null)
+            return null;
+
+        if (template != null && template.getShape().equals(shape))
+            return template;
+
+        if (templateCache == null)
+            return null;
+
+        JpaJsonSearchTemplate cached = templateCache.get(type, shape);
+        if (cached == null) {
+            JpaJsonSearchJpqlAndParams where = buildWhere();
+            cached = new JpaJsonSearchTemplate(shape, buildJpql(false, projection, where), buildJpql(true, projection, where));
+            templateCache.put(type, cached);
+        }
+
+        template = cached;
+        return cached;
+    }
+
+    private static class PreparedQuery {
+
+        final String jpql;
+        final List<String> names;
+        final List<Object> values;
+        final boolean count;
+        final boolean ids;
+        final boolean entities;
+        final boolean projected;
+        final String shape;
+
+        PreparedQuery(String jpql, List<String> names, List<Object> values, boolean count, boolean ids, boolean entities, boolean projected, String shape) {
+            this.jpql = jpql;
+            this.names = names;
+            this.values = values;
+            this.count = count;
+            this.ids = ids;
+            this.entities = entities;
+            this.projected = projected;
+            this.shape = shape;
+        }
+    }
+
+    private boolean isTwoPhase(boolean count, Class<?> projection) {
+        return (twoPhase || fetchTwoPhase) && !count && projection == null;
+    }
+
+    private boolean selectsEntities(boolean count, Class<?> projection) {
+        return !count && projection == null && !keyset && !isTwoPhase(count, projection);
+    }
+
+    private PreparedQuery prepareQuery(boolean count) {
+        return prepareQuery(count, null);
+    }
+
+    private PreparedQuery prepareQuery(boolean count, Class<?> projection) {
+        PreparedQuery[] prepared = prepareQueries(projection, !count, count);
+        return count ? prepared[1] : prepared[0];
+    }
+
+    private PreparedQuery[] prepareQueries(Class<?> projection, boolean find, boolean count) {
+        logger.trace("Preparing query");
+
+        optimizeFilter();
+
+        long start = System.nanoTime();
+        long resolved = resolveReferences();
+        long resolveNanos = System.nanoTime() - start;
+
+        resolveFetchGraph();
+
+        if (keyset && find)
+            checkKeysetSorts();
+
+        start = System.nanoTime();
+
+        String shape = null;
+        String countShape = null;
+        if (!listeners.isEmpty() || template != null || templateCache != null || resultCache != null || coalescer != null) {
+            shape = buildShape(projection);
+            countShape = projection == null || !count || isProjectedCount(projection) ? shape : buildShape(null);
+        }
+
+        if (parseNanos >= 0) {
+            notifyListeners(JpaJsonSearchEvent.Phase.PARSE, shape, parseNanos, -1);
+            parseNanos = -1;
+        }
+
+        if (resolved >= 0)
+            notifyListeners(JpaJsonSearchEvent.Phase.RESOLVE, shape, resolveNanos, resolved);
+
+        PreparedQuery[] prepared = new PreparedQuery[2];
+        JpaJsonSearchTemplate resolvedTemplate = resolveTemplate(shape, projection);
+        if (resolvedTemplate != null) {
+            logger.trace("Binding template");
+
+            List<Object> values = new ArrayList<>();
+            rootFilter.collectParams(values);
+
+            if (keyset && after != null)
+                values.addAll(decodeCursor());
+
+            if (find)
+                prepared[0] = new PreparedQuery(resolvedTemplate.getJpql(), resolvedTemplate.getParameterNames(),
+                        resolvedTemplate.bind(values, false), false, isTwoPhase(false, projection), selectsEntities(false, projection), false, shape);
+
+            if (count)
+                prepared[1] = new PreparedQuery(resolvedTemplate.getCountJpql(), resolvedTemplate.getCountParameterNames(),
+                        resolvedTemplate.bind(values, true), true, false, false, isProjectedCount(projection), countShape);
+        }
+        else {
+            // Built once, the filter tree isn't walked again for the count query
+            JpaJsonSearchJpqlAndParams where = buildWhere();
+
+            if (find) {
+                JpaJsonSearchJpqlAndParams jpqlAndParams = buildJpql(false, projection, where);
+                prepared[0] = new PreparedQuery(jpqlAndParams.jpql.toString(), jpqlAndParams.names, jpqlAndParams.values,
+                        false, isTwoPhase(false, projection), selectsEntities(false, projection), false, shape);
+            }
+
+            if (count) {
+                JpaJsonSearchJpqlAndParams jpqlAndParams = buildJpql(true, projection, where);
+                prepared[1] = new PreparedQuery(jpqlAndParams.jpql.toString(), jpqlAndParams.names, jpqlAndParams.values,
+                        true, false, false, isProjectedCount(projection), countShape);
+            }
+        }
+
+        notifyListeners(JpaJsonSearchEvent.Phase.BUILD, shape, System.nanoTime() - start, -1);
+
+        return prepared;
+    }
+
+    private <V> TypedQuery<V> buildQuery(EntityManager em, PreparedQuery prepared, Class<V> type) {
+        logger.trace("Building query");
+
+        logger.debug("Resulting JPQL: " + prepared.jpql);
+
+        TypedQuery<V> query = em.createQuery(prepared.jpql, type);
+        for (int i = 0; i < prepared.names.size(); ++i)
+            query.setParameter(prepared.names.get(i), prepared.values.get(i));
+
+        executionProfile.apply(query);
+
+        // The fetch plan never applies to count queries
+        if (prepared.entities && fetchGraph != null)
+            query.setHint(loadGraph ? LOAD_GRAPH_HINT : FETCH_GRAPH_HINT, getFetchGraph(em));
+
+        if (!prepared.count & isPaged()) {
+            query.setMaxResults(pageSize);
+            query.setFirstResult(keyset ? 0 : page * pageSize);
+        }
+
+        return query;
+    }
+
+    // Graphs belong to the metamodel of a persistence unit, queries routed to a replica need one of their own
+    private EntityGraph<?> getFetchGraph(EntityManager em) {
+        if (replicaRouter == null || em == this.em || em.getEntityManagerFactory() == this.em.getEntityManagerFactory())
+            return fetchGraph;
+
+        return fetchGraphName != null ? em.getEntityGraph(fetchGraphName) : buildFetchGraph(em);
+    }
+
+    private boolean isRouted() {
+        return replicaRouter != null && !requirePrimary;
+    }
+
+    private <V> V route(Function<EntityManager, V> function, Supplier<V> primary) {
+        return isRouted() ? replicaRouter.execute(function, primary) : primary.get();
+    }
+
+    private <V> V withEntityManager(Function<EntityManager, V> function) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            return function.apply(em);
         }
         catch (JpaJsonSearchException e) {
             throw e;
@@ -282,5 +1252,595 @@ public class JpaJsonSearch<T> {
         catch (Exception e) {
             throw new JpaJsonSearchException(e);
         }
+        finally {
+            em.close();
+        }
+    }
+
+    private static class Page<T> {
+
+        final List<T> values;
+        final String next;
+        final boolean hasNext;
+
+        Page(List<T> values, String next, boolean hasNext) {
+            this.values = values;
+            this.next = next;
+            this.hasNext = hasNext;
+        }
+    }
+
+    private boolean isPaged() {
+        return page >= 0 && pageSize >= 0;
+    }
+
+    private static <E> List<E> distinctRoots(List<E> rows) {
+        Set<E> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        List<E> roots = new ArrayList<>(rows.size());
+        for (E row : rows)
+            if (seen.add(row))
+                roots.add(row);
+
+        return roots;
+    }
+
+    private List<Object> loadByIds(EntityManager em, List<Object> ids) {
+        logger.trace("Loading two phase page");
+
+        if (ids.isEmpty())
+            return new ArrayList<>();
+
+        StringBuilder jpql = new StringBuilder(SELECT);
+
+        if (distinct)
+            jpql.append(DISTINCT);
+
+        jpql.append(alias.trim())
+                .append(FROM)
+                .append(fromJpql.trim())
+                .append(WHERE)
+                .append(buildIdPath())
+                .append(IN)
+                .append(COLON)
+                .append(IDS);
+
+        logger.debug("Resulting JPQL: " + jpql);
+
+        TypedQuery<T> query = em.createQuery(jpql.toString(), type)
+                .setParameter(IDS, ids);
+        executionProfile.apply(query);
+
+        if (fetchGraph != null)
+            query.setHint(loadGraph ? LOAD_GRAPH_HINT : FETCH_GRAPH_HINT, getFetchGraph(em));
+
+        List<?> resultList = query.getResultList();
+
+        PersistenceUnitUtil persistenceUnitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        Map<Object, Object> entities = new HashMap<>();
+        for (Object entity : resultList)
+            entities.put(persistenceUnitUtil.getIdentifier(entity), entity);
+
+        // Restore the order of the first phase
+        List<Object> values = new ArrayList<>(ids.size());
+        for (Object id : ids) {
+            Object entity = entities.get(id);
+            if (entity != null)
+                values.add(entity);
+        }
+
+        return values;
+    }
+
+    private Object buildKeyValue(EntityManager em, Object value) {
+        if (value instanceof Collection) {
+            List<Object> values = new ArrayList<>();
+            for (Object v : (Collection<?>) value)
+                values.add(buildKeyValue(em, v));
+
+            return values;
+        }
+
+        // Entities are keyed by id, instances loaded by different persistence contexts aren't equal
+        if (value != null && ENTITY_CLASSES.get(value.getClass()))
+            return Arrays.asList(Entity.class, em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(value));
+
+        return value;
+    }
+
+    private boolean isCoalesced() {
+        return coalescer != null && emf != null;
+    }
+
+    private List<Object> buildExecutionKey(EntityManager em, PreparedQuery prepared, Object... extra) {
+        List<Object> key = new ArrayList<>();
+        key.add(type);
+        key.add(prepared.shape);
+        key.add(prepared.count);
+        // Searches requiring the primary never share replica executions or results
+        key.add(isRouted());
+        key.add(buildKeyValue(em, prepared.values));
+        key.addAll(Arrays.asList(extra));
+        return key;
+    }
+
+    // Pages of entities are only cached when loaded on a dedicated entity manager, detached from every caller
+    private boolean isPageCached(Class<?> resultType) {
+        return resultCache != null && (emf != null || resultType != type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> Page<V> findPage(EntityManager em, PreparedQuery prepared, Class<V> resultType, boolean lookahead) {
+        boolean cached = isPageCached(resultType);
+
+        List<Object> key = null;
+        if (cached || isCoalesced())
+            key = buildExecutionKey(em, prepared, resultType, lookahead, page, pageSize);
+
+        if (cached) {
+            Page<V> hit = (Page<V>) resultCache.get(key);
+            if (hit != null)
+                return new Page<>(new ArrayList<>(hit.values), hit.next, hit.hasNext);
+        }
+
+        Function<EntityManager, Page<V>> find = entityManager -> executeFindPage(entityManager, prepared, resultType, lookahead);
+
+        Page<V> found;
+        if (isCoalesced()) {
+            // The leader runs on its own entity manager, so the shared entities are detached for every caller
+            found = coalescer.execute(key, () -> route(find, () -> withEntityManager(find)));
+            found = new Page<>(new ArrayList<>(found.values), found.next, found.hasNext);
+        }
+        else if (cached && emf != null) {
+            found = route(find, () -> withEntityManager(find));
+        }
+        else {
+            found = route(find, () -> find.apply(em));
+        }
+
+        if (cached)
+            resultCache.put(type, key, new Page<>(new ArrayList<>(found.values), found.next, found.hasNext), found.values.size(), false);
+
+        return found;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> Page<V> executeFindPage(EntityManager em, PreparedQuery prepared, Class<V> resultType, boolean lookahead) {
+        // A single selected column can't be queried as Object[], rows are wrapped after fetching instead
+        boolean singleColumnRows = resultType == Object[].class && selections.size() == 1;
+        boolean multiColumn = keyset || (prepared.ids && !sorts.isEmpty());
+
+        Class<?> queryType = resultType;
+        if (multiColumn)
+            queryType = Object[].class;
+        else if (singleColumnRows || prepared.ids)
+            queryType = Object.class;
+
+        long start = System.nanoTime();
+
+        TypedQuery<?> query = buildQuery(em, prepared, queryType);
+
+        // Fetch one row more than requested to tell whether a next page exists without counting
+        if (lookahead && isPaged())
+            query.setMaxResults(pageSize + 1);
+
+        List<?> rows = query.getResultList();
+
+        boolean hasNext = lookahead && isPaged() && rows.size() > pageSize;
+        if (hasNext)
+            rows = new ArrayList<>(rows.subList(0, pageSize));
+
+        List<Object> values;
+        if (multiColumn || singleColumnRows) {
+            values = new ArrayList<>(rows.size());
+            for (Object row : rows)
+                values.add(multiColumn ? ((Object[]) row)[0] : new Object[] { row });
+        }
+        else if (resultType == Tuple.class) {
+            values = new ArrayList<>(rows.size());
+            for (Object row : rows)
+                values.add(new JpaJsonSearchTuple((Tuple) row, selections));
+        }
+        else if (prepared.entities && fetchDistinct) {
+            values = distinctRoots((List<Object>) rows);
+        }
+        else {
+            values = (List<Object>) rows;
+        }
+
+        if (prepared.ids)
+            values = loadByIds(em, values);
+
+        notifyListeners(JpaJsonSearchEvent.Phase.FIND, prepared.shape, System.nanoTime() - start, values.size());
+
+        String next = null;
+        if (keyset && isPaged() && rows.size() > 0 && (lookahead ? hasNext : rows.size() >= pageSize))
+            next = JpaJsonSearchCursor.encode((Object[]) rows.get(rows.size() - 1), 1);
+
+        return new Page<>((List<V>) values, next, hasNext);
+    }
+
+    private boolean isCounted() {
+        return countStrategy.getType() == JpaJsonSearchCountStrategy.Type.EXACT
+                || countStrategy.getType() == JpaJsonSearchCountStrategy.Type.CAPPED;
+    }
+
+    private Number executeCount(EntityManager em, PreparedQuery prepared) {
+        List<Object> key = null;
+        if (resultCache != null || isCoalesced())
+            key = buildExecutionKey(em, prepared, countStrategy.getCap());
+
+        if (resultCache != null) {
+            Number cached = (Number) resultCache.get(key);
+            if (cached != null)
+                return cached;
+        }
+
+        Function<EntityManager, Number> count = entityManager -> runCount(entityManager, prepared);
+        Number counted = isCoalesced()
+                ? coalescer.execute(key, () -> route(count, () -> withEntityManager(count)))
+                : route(count, () -> runCount(em, prepared));
+
+        if (resultCache != null)
+            resultCache.put(type, key, counted, 1, true);
+
+        return counted;
+    }
+
+    private Number runCount(EntityManager em, PreparedQuery prepared) {
+        long start = System.nanoTime();
+
+        boolean capped = countStrategy.getType() == JpaJsonSearchCountStrategy.Type.CAPPED;
+
+        Number counted;
+        if (capped || prepared.projected) {
+            // Distinct projections are counted by reading their distinct rows
+            Class<?> rowType = prepared.projected && selections.size() > 1 ? Object[].class : Object.class;
+            TypedQuery<?> query = buildQuery(em, prepared, rowType);
+            if (capped)
+                query.setMaxResults(countStrategy.getCap() + 1);
+
+            counted = query.getResultList().size();
+        }
+        else
+            counted = buildQuery(em, prepared, Number.class).getSingleResult();
+
+        notifyListeners(JpaJsonSearchEvent.Phase.COUNT, prepared.shape, System.nanoTime() - start, counted.longValue());
+
+        return counted;
+    }
+
+    private <V> JpaJsonSearchResult<V> buildResult(Page<V> found, Number counted) {
+        Number count;
+        boolean countExact;
+        Boolean hasNext = null;
+        switch (countStrategy.getType()) {
+            case NONE:
+                count = null;
+                countExact = false;
+                break;
+            case HAS_NEXT:
+                hasNext = found.hasNext;
+                if (keyset) {
+                    count = null;
+                    countExact = false;
+                }
+                else if (found.values.isEmpty() && isPaged() && page > 0) {
+                    // A page beyond the end doesn't tell how many rows precede it
+                    count = null;
+                    countExact = false;
+                }
+                else {
+                    long skipped = isPaged() ? (long) page * pageSize : 0;
+                    count = skipped + found.values.size() + (found.hasNext ? 1 : 0);
+                    countExact = !found.hasNext;
+                }
+                break;
+            case CAPPED:
+                count = Math.min(counted.longValue(), countStrategy.getCap());
+                countExact = counted.longValue() <= countStrategy.getCap();
+                break;
+            default:
+                count = counted;
+                countExact = true;
+                break;
+        }
+
+        if (hasNext == null && countExact && !keyset)
+            hasNext = isPaged() && (long) (page + 1) * pageSize < count.longValue();
+
+        return new JpaJsonSearchResult<>(found.values, count, countExact, hasNext, page, pageSize, found.next);
+    }
+
+    public List<T> find() {
+        logger.trace("Executing find");
+
+        try {
+            return findPage(em, prepareQuery(false), type, false).values;
+        }
+        catch (JpaJsonSearchException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public Stream<T> stream(int fetchSize) {
+        logger.trace("Executing stream");
+
+        resolveFetchGraph();
+
+        if (isTwoPhase(false, null))
+            throw new JpaJsonSearchException("Two phase paging doesn't support streaming");
+
+        try {
+            TypedQuery<?> query = keyset ? buildQuery(em, prepareQuery(false), Object[].class) : buildQuery(em, prepareQuery(false), type);
+
+            if (fetchSize > 0)
+                query.setHint(FETCH_SIZE_HINT, fetchSize);
+
+            Stream<?> stream = query.getResultStream();
+            if (keyset)
+                return stream.map(row -> (T) ((Object[]) row)[0]);
+
+            // Roots are told apart by id, as batches detached by forEach come back as new instances
+            if (fetchDistinct) {
+                PersistenceUnitUtil persistenceUnitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+                Set<Object> seen = new HashSet<>();
+                stream = stream.filter(entity -> seen.add(persistenceUnitUtil.getIdentifier(entity)));
+            }
+
+            return (Stream<T>) stream;
+        }
+        catch (JpaJsonSearchException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    public Stream<T> stream() {
+        return stream(0);
+    }
+
+    public void forEach(Consumer<T> consumer, int fetchSize) {
+        logger.trace("Executing for each");
+
+        try (Stream<T> stream = stream(fetchSize)) {
+            List<T> consumed = new ArrayList<>();
+            for (Iterator<T> it = stream.iterator(); it.hasNext(); ) {
+                T value = it.next();
+                consumer.accept(value);
+
+                // Detaching the emitted entities keeps memory flat, leaving the rest of the persistence context alone
+                if (fetchSize > 0) {
+                    consumed.add(value);
+                    if (consumed.size() == fetchSize) {
+                        detach(consumed);
+                        consumed.clear();
+                    }
+                }
+            }
+        }
+        catch (JpaJsonSearchException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    private void detach(List<T> values) {
+        for (T value : values)
+            em.detach(value);
+    }
+
+    public <V> void forEachChunk(JpaJsonSearchResultTransformer<T, V> transformer, Consumer<List<V>> consumer, int chunkSize) {
+        logger.trace("Executing for each chunk");
+
+        if (chunkSize <= 0)
+            throw new JpaJsonSearchException("Expected chunk size to be positive");
+
+        try (Stream<T> stream = stream(chunkSize)) {
+            List<T> chunk = new ArrayList<>(chunkSize);
+            for (Iterator<T> it = stream.iterator(); it.hasNext(); ) {
+                chunk.add(it.next());
+
+                if (chunk.size() == chunkSize) {
+                    consumer.accept(transformer.transform(chunk));
+                    detach(chunk);
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+
+            if (!chunk.isEmpty())
+                consumer.accept(transformer.transform(chunk));
+        }
+        catch (JpaJsonSearchException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    public T findSingle() {
+        logger.trace("Executing find single");
+
+        if (keyset)
+            throw new JpaJsonSearchException("Keyset pagination doesn't support single results");
+
+        resolveFetchGraph();
+
+        if (isTwoPhase(false, null))
+            throw new JpaJsonSearchException("Two phase paging doesn't support single results");
+
+        try {
+            TypedQuery<T> query = buildQuery(em, prepareQuery(false), type);
+            if (!fetchDistinct)
+                return query.getSingleResult();
+
+            List<T> found = distinctRoots(query.getResultList());
+            if (found.isEmpty())
+                throw new NoResultException("No result found");
+            if (found.size() > 1)
+                throw new NonUniqueResultException("More than one result found");
+
+            return found.get(0);
+        }
+        catch (JpaJsonSearchException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    public Number count() {
+        logger.trace("Executing count");
+
+        try {
+            Number counted = executeCount(em, prepareQuery(true));
+
+            if (countStrategy.getType() == JpaJsonSearchCountStrategy.Type.CAPPED)
+                return Math.min(counted.longValue(), countStrategy.getCap());
+
+            return counted;
+        }
+        catch (JpaJsonSearchException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    public JpaJsonSearchResult<T> result() {
+        logger.trace("Executing result");
+
+        try {
+            boolean lookahead = countStrategy.getType() == JpaJsonSearchCountStrategy.Type.HAS_NEXT;
+            PreparedQuery[] prepared = prepareQueries(null, true, isCounted());
+            Page<T> found = findPage(em, prepared[0], type, lookahead);
+            Number counted = prepared[1] != null ? executeCount(em, prepared[1]) : null;
+
+            return buildResult(found, counted);
+        }
+        catch (JpaJsonSearchException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    private <V> List<V> findProjection(Class<V> resultType, Class<?> projection) {
+        logger.trace("Executing projection find");
+
+        if (selections.isEmpty())
+            throw new JpaJsonSearchException("Expected selections for projection");
+
+        if (keyset)
+            throw new JpaJsonSearchException("Keyset pagination doesn't support projections");
+
+        try {
+            return findPage(em, prepareQuery(false, projection), resultType, false).values;
+        }
+        catch (JpaJsonSearchException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    public List<Object[]> findRows() {
+        return findProjection(Object[].class, Object[].class);
+    }
+
+    public List<Tuple> findTuples() {
+        return findProjection(Tuple.class, Tuple.class);
+    }
+
+    public <V> List<V> findAs(Class<V> type) {
+        return findProjection(type, type);
+    }
+
+    private <V> JpaJsonSearchResult<V> resultProjection(Class<V> resultType, Class<?> projection) {
+        logger.trace("Executing projection result");
+
+        if (selections.isEmpty())
+            throw new JpaJsonSearchException("Expected selections for projection");
+
+        if (keyset)
+            throw new JpaJsonSearchException("Keyset pagination doesn't support projections");
+
+        try {
+            boolean lookahead = countStrategy.getType() == JpaJsonSearchCountStrategy.Type.HAS_NEXT;
+            PreparedQuery[] prepared = prepareQueries(projection, true, isCounted());
+            Page<V> found = findPage(em, prepared[0], resultType, lookahead);
+            Number counted = prepared[1] != null ? executeCount(em, prepared[1]) : null;
+
+            return buildResult(found, counted);
+        }
+        catch (JpaJsonSearchException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException(e);
+        }
+    }
+
+    public JpaJsonSearchResult<Object[]> resultRows() {
+        return resultProjection(Object[].class, Object[].class);
+    }
+
+    public JpaJsonSearchResult<Tuple> resultTuples() {
+        return resultProjection(Tuple.class, Tuple.class);
+    }
+
+    public <V> JpaJsonSearchResult<V> resultAs(Class<V> type) {
+        return resultProjection(type, type);
+    }
+
+    public CompletableFuture<JpaJsonSearchResult<T>> resultAsync(Executor executor) {
+        logger.trace("Executing async result");
+
+        if (emf == null)
+            return failedFuture(new JpaJsonSearchException("Expected an entity manager factory to execute asynchronously"));
+
+        // Queries are prepared on the calling thread, as building them isn't thread safe
+        boolean lookahead = countStrategy.getType() == JpaJsonSearchCountStrategy.Type.HAS_NEXT;
+        PreparedQuery[] prepared;
+        try {
+            prepared = prepareQueries(null, true, isCounted());
+        }
+        catch (JpaJsonSearchException e) {
+            return failedFuture(e);
+        }
+        catch (Exception e) {
+            return failedFuture(new JpaJsonSearchException(e));
+        }
+
+        PreparedQuery findQuery = prepared[0];
+        PreparedQuery countQuery = prepared[1];
+
+        CompletableFuture<Page<T>> findFuture = CompletableFuture.supplyAsync(
+                () -> withEntityManager(entityManager -> findPage(entityManager, findQuery, type, lookahead)), executor);
+
+        CompletableFuture<Number> countFuture = countQuery == null
+                ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.supplyAsync(() -> withEntityManager(entityManager -> executeCount(entityManager, countQuery)), executor);
+
+        return findFuture.thenCombine(countFuture, this::buildResult);
+    }
+
+    private static <V> CompletableFuture<V> failedFuture(Throwable cause) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
     }
 }
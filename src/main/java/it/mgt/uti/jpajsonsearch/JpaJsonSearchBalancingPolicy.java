@@ -0,0 +1,29 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the read replica a search is routed to. Policies are shared by all the searches of a router and may be called
+ * concurrently, so implementations must be thread safe.
+ */
+public interface JpaJsonSearchBalancingPolicy {
+
+    JpaJsonSearchReplicaRouter.Replica select(List<JpaJsonSearchReplicaRouter.Replica> replicas);
+
+    static JpaJsonSearchBalancingPolicy roundRobin() {
+        AtomicInteger next = new AtomicInteger();
+        return replicas -> replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+    }
+
+    static JpaJsonSearchBalancingPolicy leastInFlight() {
+        return replicas -> {
+            JpaJsonSearchReplicaRouter.Replica selected = replicas.get(0);
+            for (JpaJsonSearchReplicaRouter.Replica replica : replicas)
+                if (replica.getInFlight() < selected.getInFlight())
+                    selected = replica;
+
+            return selected;
+        };
+    }
+}
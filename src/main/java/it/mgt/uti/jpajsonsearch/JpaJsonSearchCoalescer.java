@@ -0,0 +1,97 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Single flight execution of identical concurrent searches: the first caller runs the query, callers arriving while
+ * it is in flight wait for and share its result, for at most the wait time if one is set. Nothing is kept once the
+ * execution completes.
+ */
+public class JpaJsonSearchCoalescer {
+
+    private final ConcurrentMap<List<Object>, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final long waitMillis;
+
+    public JpaJsonSearchCoalescer() {
+        this(0);
+    }
+
+    // Zero waits for the leader without a bound
+    public JpaJsonSearchCoalescer(long waitMillis) {
+        this.waitMillis = waitMillis;
+    }
+
+    @SuppressWarnings("unchecked")
+    <V> V execute(List<Object> key, Supplier<V> supplier) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return (V) await(existing);
+        }
+
+        executions.incrementAndGet();
+
+        try {
+            V value = supplier.get();
+            future.complete(value);
+            return value;
+        }
+        catch (Throwable e) {
+            // Errors too, followers must never wait for a future nobody completes
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private Object await(CompletableFuture<Object> future) {
+        try {
+            return waitMillis > 0 ? future.get(waitMillis, TimeUnit.MILLISECONDS) : future.get();
+        }
+        catch (TimeoutException e) {
+            throw new JpaJsonSearchException("Coalesced search not completed within " + waitMillis + " ms", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JpaJsonSearchException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof JpaJsonSearchException)
+                throw (JpaJsonSearchException) e.getCause();
+
+            throw new JpaJsonSearchException(e.getCause());
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,90 @@
+package it.mgt.uti.jpajsonsearch;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+public class JpaJsonSearchCountStrategy {
+
+    public enum Type {
+
+        EXACT,
+        NONE,
+        HAS_NEXT,
+        CAPPED;
+
+        static Type parse(String placeholder) {
+            switch (placeholder) {
+                case "EXACT":
+                    return EXACT;
+                case "NONE":
+                    return NONE;
+                case "HAS_NEXT":
+                    return HAS_NEXT;
+                case "CAPPED":
+                    return CAPPED;
+                default:
+                    throw new JpaJsonSearchException("Unknown " + placeholder + " placeholder");
+            }
+        }
+    }
+
+    public final static JpaJsonSearchCountStrategy EXACT = new JpaJsonSearchCountStrategy(Type.EXACT, 0);
+    public final static JpaJsonSearchCountStrategy NONE = new JpaJsonSearchCountStrategy(Type.NONE, 0);
+    public final static JpaJsonSearchCountStrategy HAS_NEXT = new JpaJsonSearchCountStrategy(Type.HAS_NEXT, 0);
+
+    private final Type type;
+    private final int cap;
+
+    private JpaJsonSearchCountStrategy(Type type, int cap) {
+        this.type = type;
+        this.cap = cap;
+    }
+
+    public static JpaJsonSearchCountStrategy capped(int cap) {
+        if (cap <= 0)
+            throw new JpaJsonSearchException("Expected count cap to be positive");
+
+        return new JpaJsonSearchCountStrategy(Type.CAPPED, cap);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getCap() {
+        return cap;
+    }
+
+    static JpaJsonSearchCountStrategy parse(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_STRING) {
+            switch (Type.parse(parser.getText())) {
+                case EXACT:
+                    return EXACT;
+                case NONE:
+                    return NONE;
+                case HAS_NEXT:
+                    return HAS_NEXT;
+                default:
+                    throw new JpaJsonSearchException("Expected CAPPED count node to be an object node with the cap");
+            }
+        }
+
+        if (parser.currentToken() != JsonToken.START_OBJECT || parser.nextToken() != JsonToken.FIELD_NAME)
+            throw new JpaJsonSearchException("Expected count node to be a string or an object node with a single child");
+
+        if (Type.parse(parser.currentName()) != Type.CAPPED)
+            throw new JpaJsonSearchException("Expected count node child to be CAPPED");
+
+        if (parser.nextToken() != JsonToken.VALUE_NUMBER_INT)
+            throw new JpaJsonSearchException("Expected CAPPED count node to be an integral number");
+
+        int cap = parser.getIntValue();
+
+        if (parser.nextToken() != JsonToken.END_OBJECT)
+            throw new JpaJsonSearchException("Expected count node to be a string or an object node with a single child");
+
+        return capped(cap);
+    }
+}
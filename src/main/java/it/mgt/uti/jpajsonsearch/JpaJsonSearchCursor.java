@@ -0,0 +1,86 @@
+package it.mgt.uti.jpajsonsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import it.mgt.util.jpa.JpaUtils;
+
+import javax.persistence.Entity;
+import java.lang.reflect.Method;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Opaque keyset pagination cursors: the sort values and the id of the last row of a page, serialized as a JSON
+ * array and base64url encoded. java.time values are written in their ISO form and parsed back through the declared type.
+ */
+class JpaJsonSearchCursor {
+
+    private final static ObjectMapper objectMapper = new ObjectMapper();
+
+    private JpaJsonSearchCursor() {
+    }
+
+    static String encode(Object[] row, int offset) {
+        ArrayNode arrayNode = objectMapper.createArrayNode();
+        for (int i = offset; i < row.length; ++i) {
+            if (row[i] == null)
+                throw new JpaJsonSearchException("Keyset pagination doesn't support null sort values");
+
+            if (JpaUtils.getAnnotation(row[i].getClass(), Entity.class) != null)
+                throw new JpaJsonSearchException("Keyset pagination doesn't support sorting on entity parameters");
+
+            if (row[i] instanceof TemporalAccessor)
+                arrayNode.add(row[i].toString());
+            else
+                arrayNode.add(objectMapper.valueToTree(row[i]));
+        }
+
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(objectMapper.writeValueAsBytes(arrayNode));
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException("Unable to encode cursor", e);
+        }
+    }
+
+    static List<Object> decode(String cursor, List<Class<?>> types) {
+        JsonNode jsonNode;
+        try {
+            jsonNode = objectMapper.readTree(Base64.getUrlDecoder().decode(cursor));
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException("Invalid cursor", e);
+        }
+
+        if (jsonNode == null || !jsonNode.isArray() || jsonNode.size() != types.size())
+            throw new JpaJsonSearchException("Invalid cursor");
+
+        List<Object> values = new ArrayList<>(types.size());
+        for (int i = 0; i < types.size(); ++i) {
+            JsonNode valueNode = jsonNode.get(i);
+            if (valueNode.isNull())
+                throw new JpaJsonSearchException("Keyset pagination doesn't support null sort values");
+
+            values.add(decodeValue(valueNode, types.get(i)));
+        }
+
+        return values;
+    }
+
+    private static Object decodeValue(JsonNode valueNode, Class<?> type) {
+        try {
+            if (TemporalAccessor.class.isAssignableFrom(type)) {
+                Method parse = type.getMethod("parse", CharSequence.class);
+                return parse.invoke(null, valueNode.asText());
+            }
+
+            return objectMapper.convertValue(valueNode, type);
+        }
+        catch (Exception e) {
+            throw new JpaJsonSearchException("Invalid cursor", e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package it.mgt.uti.jpajsonsearch;
+
+public class JpaJsonSearchEvent {
+
+    public enum Phase {
+
+        PARSE,
+        BUILD,
+        RESOLVE,
+        FIND,
+        COUNT
+
+    }
+
+    private final Class<?> type;
+    private final String shape;
+    private final Phase phase;
+    private final long nanos;
+    private final long rows;
+
+    JpaJsonSearchEvent(Class<?> type, String shape, Phase phase, long nanos, long rows) {
+        this.type = type;
+        this.shape = shape;
+        this.phase = phase;
+        this.nanos = nanos;
+        this.rows = rows;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public String getShape() {
+        return shape;
+    }
+
+    public String getShapeHash() {
+        return Integer.toHexString(shape.hashCode());
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Rows fetched for FIND, rows counted for COUNT, references loaded for RESOLVE, -1 otherwise.
+     */
+    public long getRows() {
+        return rows;
+    }
+}
@@ -0,0 +1,149 @@
+package it.mgt.uti.jpajsonsearch;
+
+import javax.persistence.FlushModeType;
+import javax.persistence.Query;
+
+/**
+ * Flush mode and hints applied to every query a search executes: read only loading, JDBC fetch size, timeout and
+ * second level query cache. Hints not understood by the persistence provider are ignored.
+ */
+public class JpaJsonSearchExecutionProfile {
+
+    final static String READ_ONLY_HINT = "org.hibernate.readOnly";
+    final static String TIMEOUT_HINT = "javax.persistence.query.timeout";
+    final static String CACHEABLE_HINT = "org.hibernate.cacheable";
+    final static String CACHE_REGION_HINT = "org.hibernate.cacheRegion";
+
+    public final static JpaJsonSearchExecutionProfile DEFAULT = builder().build();
+    public final static JpaJsonSearchExecutionProfile READ_ONLY = builder()
+            .flushMode(FlushModeType.COMMIT)
+            .readOnly(true)
+            .build();
+
+    public static class Builder {
+
+        private FlushModeType flushMode;
+        private boolean readOnly;
+        private int fetchSize;
+        private int timeoutMillis;
+        private boolean cacheable;
+        private String cacheRegion;
+
+        private Builder() {
+        }
+
+        public Builder flushMode(FlushModeType flushMode) {
+            this.flushMode = flushMode;
+            return this;
+        }
+
+        public Builder readOnly(boolean readOnly) {
+            this.readOnly = readOnly;
+            return this;
+        }
+
+        public Builder fetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        public Builder timeoutMillis(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        public Builder cacheable(boolean cacheable) {
+            this.cacheable = cacheable;
+            return this;
+        }
+
+        public Builder cacheRegion(String cacheRegion) {
+            this.cacheable = cacheRegion != null || cacheable;
+            this.cacheRegion = cacheRegion;
+            return this;
+        }
+
+        public JpaJsonSearchExecutionProfile build() {
+            return new JpaJsonSearchExecutionProfile(this);
+        }
+    }
+
+    private final FlushModeType flushMode;
+    private final boolean readOnly;
+    private final int fetchSize;
+    private final int timeoutMillis;
+    private final boolean cacheable;
+    private final String cacheRegion;
+
+    private JpaJsonSearchExecutionProfile(Builder builder) {
+        this.flushMode = builder.flushMode;
+        this.readOnly = builder.readOnly;
+        this.fetchSize = builder.fetchSize;
+        this.timeoutMillis = builder.timeoutMillis;
+        this.cacheable = builder.cacheable;
+        this.cacheRegion = builder.cacheRegion;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    void apply(Query query) {
+        if (flushMode != null)
+            query.setFlushMode(flushMode);
+
+        if (readOnly)
+            query.setHint(READ_ONLY_HINT, true);
+
+        if (fetchSize > 0)
+            query.setHint(JpaJsonSearch.FETCH_SIZE_HINT, fetchSize);
+
+        if (timeoutMillis > 0)
+            query.setHint(TIMEOUT_HINT, timeoutMillis);
+
+        if (cacheable) {
+            query.setHint(CACHEABLE_HINT, true);
+
+            if (cacheRegion != null)
+                query.setHint(CACHE_REGION_HINT, cacheRegion);
+        }
+    }
+
+    void buildShape(StringBuilder shape) {
+        shape.append(flushMode)
+                .append(JpaJsonSearch.COMMA)
+                .append(readOnly)
+                .append(JpaJsonSearch.COMMA)
+                .append(fetchSize)
+                .append(JpaJsonSearch.COMMA)
+                .append(timeoutMillis)
+                .append(JpaJsonSearch.COMMA)
+                .append(cacheable)
+                .append(JpaJsonSearch.COMMA)
+                .append(cacheRegion);
+    }
+
+    public FlushModeType getFlushMode() {
+        return flushMode;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    public String getCacheRegion() {
+        return cacheRegion;
+    }
+}
@@ -1,18 +1,137 @@
 package it.mgt.uti.jpajsonsearch;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class JpaJsonSearchFactory {
 
     @PersistenceContext
     private EntityManager em;
 
+    @PersistenceUnit
+    private EntityManagerFactory emf;
+
+    private JpaJsonSearchTemplateCache templateCache;
+    private JpaJsonSearch.ReferenceMode referenceMode = JpaJsonSearch.ReferenceMode.LOAD;
+    private List<JpaJsonSearchListener> listeners = new CopyOnWriteArrayList<>();
+    private JpaJsonSearchInListStrategy inListStrategy = JpaJsonSearchInListStrategy.NONE;
+    private JpaJsonSearchResultCache resultCache;
+    private JpaJsonSearchCoalescer coalescer;
+    private JpaJsonSearchExecutionProfile executionProfile = JpaJsonSearchExecutionProfile.DEFAULT;
+    private JpaJsonSearchLimits limits = JpaJsonSearchLimits.NONE;
+    private JpaJsonSearchReplicaRouter replicaRouter;
+
     public JpaJsonSearchFactory() {
     }
 
+    public EntityManagerFactory getEntityManagerFactory() {
+        return emf;
+    }
+
+    public void setEntityManagerFactory(EntityManagerFactory emf) {
+        this.emf = emf;
+    }
+
+    public JpaJsonSearchTemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    public void setTemplateCache(JpaJsonSearchTemplateCache templateCache) {
+        this.templateCache = templateCache;
+    }
+
+    public JpaJsonSearch.ReferenceMode getReferenceMode() {
+        return referenceMode;
+    }
+
+    public void setReferenceMode(JpaJsonSearch.ReferenceMode referenceMode) {
+        this.referenceMode = referenceMode;
+    }
+
+    public List<JpaJsonSearchListener> getListeners() {
+        return listeners;
+    }
+
+    public void setListeners(List<JpaJsonSearchListener> listeners) {
+        this.listeners = new CopyOnWriteArrayList<>(listeners);
+    }
+
+    public void addListener(JpaJsonSearchListener listener) {
+        listeners.add(listener);
+    }
+
+    public JpaJsonSearchInListStrategy getInListStrategy() {
+        return inListStrategy;
+    }
+
+    public void setInListStrategy(JpaJsonSearchInListStrategy inListStrategy) {
+        this.inListStrategy = inListStrategy;
+    }
+
+    public JpaJsonSearchResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(JpaJsonSearchResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public JpaJsonSearchCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    public void setCoalescer(JpaJsonSearchCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    public JpaJsonSearchExecutionProfile getExecutionProfile() {
+        return executionProfile;
+    }
+
+    public void setExecutionProfile(JpaJsonSearchExecutionProfile executionProfile) {
+        this.executionProfile = executionProfile;
+    }
+
+    public JpaJsonSearchLimits getLimits() {
+        return limits;
+    }
+
+    public void setLimits(JpaJsonSearchLimits limits) {
+        this.limits = limits;
+    }
+
+    public JpaJsonSearchReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
+
+    public void setReplicaRouter(JpaJsonSearchReplicaRouter replicaRouter) {
+        this.replicaRouter = replicaRouter;
+    }
+
     public <T> JpaJsonSearch<T> build(Class<T> type) {
-        return new JpaJsonSearch<T>(em, type);
+        return configure(new JpaJsonSearch<T>(em, type));
+    }
+
+    public <T> JpaJsonSearch<T> build(JpaJsonSearchSchema<T> schema) {
+        return configure(new JpaJsonSearch<T>(em, schema));
+    }
+
+    private <T> JpaJsonSearch<T> configure(JpaJsonSearch<T> search) {
+        return search
+                .entityManagerFactory(emf)
+                .templateCache(templateCache)
+                .referenceMode(referenceMode)
+                .listeners(listeners)
+                .inListStrategy(inListStrategy)
+                .resultCache(resultCache)
+                .coalescer(coalescer)
+                .executionProfile(executionProfile)
+                .limits(limits)
+                .replicaRouter(replicaRouter);
     }
 
 }
@@ -1,6 +1,9 @@
 package it.mgt.uti.jpajsonsearch;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.util.List;
 
 public abstract class JpaJsonSearchFilter<T> {
 
@@ -12,9 +15,15 @@ public abstract class JpaJsonSearchFilter<T> {
         this.container = container;
     }
 
-    abstract JpaJsonSearchJpqlAndParams buildJpql();
+    abstract void buildJpql(JpaJsonSearchJpqlAndParams jpql);
+
+    abstract void buildShape(StringBuilder shape);
+
+    abstract void collectParams(List<Object> params);
 
-    abstract JpaJsonSearchFilter parse(JsonNode jsonNode);
+    abstract void collectConditions(List<JpaJsonSearchFilterCondition<?>> conditions);
+
+    abstract JpaJsonSearchFilter parse(JsonParser parser) throws IOException;
 
     abstract void remove();
 
@@ -26,4 +35,16 @@ public abstract class JpaJsonSearchFilter<T> {
         return container;
     }
 
+    void setLogicalContainer(JpaJsonSearchFilterLogical container) {
+        this.container = container;
+    }
+
+    int depth() {
+        int depth = 1;
+        for (JpaJsonSearchFilterLogical c = container; c != null; c = c.logicalContainer())
+            ++depth;
+
+        return depth;
+    }
+
 }
@@ -1,17 +1,12 @@
 package it.mgt.uti.jpajsonsearch;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import it.mgt.util.jpa.JpaUtils;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.persistence.Entity;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import java.io.IOException;
+import java.util.*;
 
 public class JpaJsonSearchFilterCondition<T> extends JpaJsonSearchFilter<T> {
 
@@ -33,15 +28,37 @@ public class JpaJsonSearchFilterCondition<T> extends JpaJsonSearchFilter<T> {
         NOT_LIKE(" NOT LIKE ", true),
         LIKE_WILDCARD(" LIKE ", true),
         NOT_LIKE_WILDCARD(" NOT LIKE ", true),
+        CONTAINS(" LIKE ", true, JpaJsonSearch.PERCENT, JpaJsonSearch.PERCENT, false),
+        NOT_CONTAINS(" NOT LIKE ", true, JpaJsonSearch.PERCENT, JpaJsonSearch.PERCENT, false),
+        STARTS_WITH(" LIKE ", true, "", JpaJsonSearch.PERCENT, false),
+        ENDS_WITH(" LIKE ", true, JpaJsonSearch.PERCENT, "", false),
+        EQ_IGNORE_CASE(" = ", true, null, null, true),
+        CONTAINS_IGNORE_CASE(" LIKE ", true, JpaJsonSearch.PERCENT, JpaJsonSearch.PERCENT, true),
+        NOT_CONTAINS_IGNORE_CASE(" NOT LIKE ", true, JpaJsonSearch.PERCENT, JpaJsonSearch.PERCENT, true),
+        STARTS_WITH_IGNORE_CASE(" LIKE ", true, "", JpaJsonSearch.PERCENT, true),
+        ENDS_WITH_IGNORE_CASE(" LIKE ", true, JpaJsonSearch.PERCENT, "", true),
         NULL(" IS NULL", false),
-        NOT_NULL(" IS NOT NULL", false);
+        NOT_NULL(" IS NOT NULL", false),
+        ANY("EXISTS ", true),
+        ALL("NOT EXISTS ", true),
+        NONE("NOT EXISTS ", true);
 
         final String jpql;
         final boolean hasValue;
+        final String wildcardPrefix;
+        final String wildcardSuffix;
+        final boolean ignoreCase;
 
         Operator(String jpql, boolean hasValue) {
+            this(jpql, hasValue, null, null, false);
+        }
+
+        Operator(String jpql, boolean hasValue, String wildcardPrefix, String wildcardSuffix, boolean ignoreCase) {
             this.jpql = jpql;
             this.hasValue = hasValue;
+            this.wildcardPrefix = wildcardPrefix;
+            this.wildcardSuffix = wildcardSuffix;
+            this.ignoreCase = ignoreCase;
         }
 
         static public Operator parse(String placeholder) {
@@ -72,16 +89,49 @@ public class JpaJsonSearchFilterCondition<T> extends JpaJsonSearchFilter<T> {
                     return NOT_LIKE;
                 case "$lkw":
                     return LIKE_WILDCARD;
+                case "$nlkw":
                 case "nlkw":
                     return NOT_LIKE_WILDCARD;
+                case "$ct":
+                    return CONTAINS;
+                case "$nct":
+                    return NOT_CONTAINS;
+                case "$sw":
+                    return STARTS_WITH;
+                case "$ew":
+                    return ENDS_WITH;
+                case "$eqi":
+                    return EQ_IGNORE_CASE;
+                case "$cti":
+                    return CONTAINS_IGNORE_CASE;
+                case "$ncti":
+                    return NOT_CONTAINS_IGNORE_CASE;
+                case "$swi":
+                    return STARTS_WITH_IGNORE_CASE;
+                case "$ewi":
+                    return ENDS_WITH_IGNORE_CASE;
                 case "$null":
                     return NULL;
                 case "$nnull":
                     return NOT_NULL;
+                case "$any":
+                    return ANY;
+                case "$all":
+                    return ALL;
+                case "$none":
+                    return NONE;
                 default:
                     throw new JpaJsonSearchException("Unknown " + placeholder + " placeholder");
             }
         }
+
+        boolean isCollection() {
+            return this == ANY || this == ALL || this == NONE;
+        }
+
+        boolean isWildcard() {
+            return wildcardPrefix != null;
+        }
     }
 
     private String name;
@@ -89,6 +139,9 @@ public class JpaJsonSearchFilterCondition<T> extends JpaJsonSearchFilter<T> {
     private boolean omit = false;
     private JpaJsonSearchParameter parameter;
     private Object value;
+    private boolean reference = false;
+    private String referencePath;
+    private JpaJsonSearchFilterLogical<T> elementFilter;
 
     JpaJsonSearchFilterCondition(JpaJsonSearch<T> search, JpaJsonSearchFilterLogical container, String name) {
         super(search, container);
@@ -103,6 +156,12 @@ public class JpaJsonSearchFilterCondition<T> extends JpaJsonSearchFilter<T> {
         this(search, container, name);
 
         this.operator = operator;
+
+        if (operator.isCollection() != parameter.isCollection())
+            throw new JpaJsonSearchException("Operator " + operator + " not supported by parameter " + name);
+
+        if (operator.isCollection())
+            this.elementFilter = new JpaJsonSearchFilterLogical<>(search, container, JpaJsonSearchFilterLogical.Conjunction.AND);
     }
 
     JpaJsonSearchFilterCondition(JpaJsonSearch<T> search, JpaJsonSearchFilterLogical container, String name, Operator operator, Object value) {
@@ -112,20 +171,18 @@ public class JpaJsonSearchFilterCondition<T> extends JpaJsonSearchFilter<T> {
     }
 
     @Override
-    JpaJsonSearchJpqlAndParams buildJpql() {
+    void buildJpql(JpaJsonSearchJpqlAndParams jpql) {
         logger.trace("Building JPQL");
 
         if (omit)
-            return new JpaJsonSearchJpqlAndParams();
-
-        StringBuilder jpql = new StringBuilder();
+            return;
 
         switch (operator) {
             case NULL:
             case NOT_NULL:
-                jpql.append(parameter.path)
+                jpql.append(buildPath())
                         .append(operator.jpql);
-                return new JpaJsonSearchJpqlAndParams(jpql);
+                return;
             case BETWEEN:
             case NOT_BETWEEN:
                 if (!(value instanceof List))
@@ -135,85 +192,307 @@ public class JpaJsonSearchFilterCondition<T> extends JpaJsonSearchFilter<T> {
                 if (list.size() != 2)
                     throw new JpaJsonSearchException("Expected value for between operator to be a list with 2 elements");
 
-                String firstParamName = search.buildParameterName(name);
-                String secondParamName = search.buildParameterName(name);
-
-                Map<String, Object> params = new HashMap<>();
-                params.put(firstParamName, list.get(0));
-                params.put(secondParamName, list.get(1));
-
-                jpql.append(parameter.path)
+                jpql.append(buildPath())
                         .append(operator.jpql)
-                        .append(JpaJsonSearch.COLON)
-                        .append(firstParamName)
+                        .appendParameter(search.buildParameterName(name), list.get(0))
                         .append(JpaJsonSearch.AND)
-                        .append(JpaJsonSearch.COLON)
-                        .append(secondParamName);
-                return new JpaJsonSearchJpqlAndParams(jpql, params);
+                        .appendParameter(search.buildParameterName(name), list.get(1));
+                return;
+            case IN:
+            case NOT_IN:
+                if (value instanceof List)
+                    buildInJpql(jpql);
+                else
+                    buildComparisonJpql(jpql);
+                return;
+            case ANY:
+            case ALL:
+            case NONE:
+                buildExistsJpql(jpql);
+                return;
             default:
-                String paramName = search.buildParameterName(name);
+                buildComparisonJpql(jpql);
+                return;
+        }
+    }
 
-                jpql.append(parameter.path)
-                        .append(operator.jpql)
-                        .append(JpaJsonSearch.COLON)
-                        .append(paramName);
-                return new JpaJsonSearchJpqlAndParams(jpql, paramName, value);
+    private void buildComparisonJpql(JpaJsonSearchJpqlAndParams jpql) {
+        jpql.append(buildOperand())
+                .append(operator.jpql)
+                .appendParameter(search.buildParameterName(name), bindValue());
+
+        if (operator.isWildcard())
+            jpql.append(JpaJsonSearch.ESCAPE);
+    }
+
+    // Correlated subquery on the collection elements, so the root query needs no join and no DISTINCT
+    private void buildExistsJpql(JpaJsonSearchJpqlAndParams jpql) {
+        int start = jpql.length();
+
+        jpql.append(operator.jpql)
+                .append(JpaJsonSearch.OPEN_PARENTHESIS)
+                .append(JpaJsonSearch.SELECT)
+                .append(parameter.elementAlias)
+                .append(JpaJsonSearch.FROM)
+                .append(parameter.path)
+                .append(JpaJsonSearch.SPACE)
+                .append(parameter.elementAlias);
+
+        int where = jpql.length();
+        jpql.append(JpaJsonSearch.WHERE);
+        if (operator == Operator.ALL)
+            jpql.append(JpaJsonSearch.NOT);
+
+        int filterStart = jpql.length();
+        elementFilter.buildJpql(jpql);
+
+        if (jpql.length() == filterStart) {
+            // Every element satisfies an empty filter, $any and $none only test the collection for emptiness
+            if (operator == Operator.ALL) {
+                jpql.truncate(start);
+                return;
+            }
+
+            jpql.truncate(where);
+        }
+
+        jpql.append(JpaJsonSearch.CLOSE_PARENTHESIS);
+    }
+
+    private void buildInJpql(JpaJsonSearchJpqlAndParams jpql) {
+        List<List<?>> chunks = search.getInListStrategy().split((List<?>) value);
+
+        if (chunks.size() > 1)
+            jpql.append(JpaJsonSearch.OPEN_PARENTHESIS);
+
+        boolean first = true;
+        for (List<?> chunk : chunks) {
+            if (first)
+                first = false;
+            else
+                jpql.append(operator == Operator.IN ? JpaJsonSearch.OR : JpaJsonSearch.AND);
+
+            jpql.append(buildPath())
+                    .append(operator.jpql)
+                    .appendParameter(search.buildParameterName(name), chunk);
+        }
+
+        if (chunks.size() > 1)
+            jpql.append(JpaJsonSearch.CLOSE_PARENTHESIS);
+    }
+
+    @Override
+    void buildShape(StringBuilder shape) {
+        if (omit)
+            return;
+
+        shape.append(name)
+                .append(JpaJsonSearch.COLON)
+                .append(buildPath())
+                .append(JpaJsonSearch.SPACE)
+                .append(operator.name());
+
+        // Chunked lists change the statement
+        if ((operator == Operator.IN || operator == Operator.NOT_IN) && value instanceof List)
+            shape.append(JpaJsonSearch.SPACE)
+                    .append(search.getInListStrategy().countChunks(((List<?>) value).size()));
+
+        if (operator.isCollection())
+            elementFilter.buildShape(shape);
+
+        shape.append(JpaJsonSearch.SEMICOLON);
+    }
+
+    @Override
+    void collectParams(List<Object> params) {
+        if (omit)
+            return;
+
+        switch (operator) {
+            case NULL:
+            case NOT_NULL:
+                return;
+            case BETWEEN:
+            case NOT_BETWEEN:
+                if (!(value instanceof List) || ((List<?>) value).size() != 2)
+                    throw new JpaJsonSearchException("Expected value for between operator to be a list with 2 elements");
+
+                params.addAll((List<?>) value);
+                return;
+            case IN:
+            case NOT_IN:
+                if (value instanceof List)
+                    params.addAll(search.getInListStrategy().split((List<?>) value));
+                else
+                    params.add(bindValue());
+                return;
+            case ANY:
+            case ALL:
+            case NONE:
+                elementFilter.collectParams(params);
+                return;
+            default:
+                params.add(bindValue());
+                return;
         }
     }
 
-    private <V> Object parseParam(String value, Class<V> type) {
-        logger.trace("Parsing parameter");
+    boolean isOmit() {
+        return omit;
+    }
+
+    void optimize() {
+        if (elementFilter != null)
+            elementFilter.optimize();
+    }
+
+    boolean isSameParameter(JpaJsonSearchFilterCondition<?> other) {
+        return name.equals(other.name)
+                && reference == other.reference
+                && Objects.equals(referencePath, other.referencePath);
+    }
+
+    JpaJsonSearchFilterCondition<T> derive(Operator operator, Object value) {
+        JpaJsonSearchFilterCondition<T> condition = new JpaJsonSearchFilterCondition<>(search, logicalContainer(), name, operator, value);
+        condition.reference = reference;
+        condition.referencePath = referencePath;
+        return condition;
+    }
 
-        if (JpaUtils.getAnnotation(type, Entity.class) != null) {
-            Class<?> idType = JpaUtils.getIdClass(type);
-            Object id = JpaUtils.parseParam(value, idType);
-            V entity = search.em.find(type, id);
+    private String buildPath() {
+        return referencePath != null ? referencePath : parameter.path;
+    }
+
+    // Case insensitive operators compare LOWER(path), so they can use a functional index on it
+    private String buildOperand() {
+        if (!operator.ignoreCase)
+            return buildPath();
+
+        return JpaJsonSearch.LOWER + buildPath() + JpaJsonSearch.CLOSE_PARENTHESIS;
+    }
+
+    private Object bindValue() {
+        if (!operator.isWildcard() && !operator.ignoreCase)
+            return value;
+
+        if (!(value instanceof String))
+            throw new JpaJsonSearchException("Expected value for " + operator + " operator to be a string");
+
+        String text = operator.ignoreCase ? ((String) value).toLowerCase(Locale.ROOT) : (String) value;
+        if (!operator.isWildcard())
+            return text;
+
+        return operator.wildcardPrefix + escapeLike(text) + operator.wildcardSuffix;
+    }
+
+    private static String escapeLike(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == JpaJsonSearch.ESCAPE_CHAR || c == '%' || c == '_')
+                escaped.append(JpaJsonSearch.ESCAPE_CHAR);
+
+            escaped.append(c);
+        }
+
+        return escaped.toString();
+    }
+
+    boolean isUnresolvedReference() {
+        return reference;
+    }
+
+    Class<?> getReferenceType() {
+        return parameter.type;
+    }
+
+    List<?> getReferenceIds() {
+        return value instanceof List ? (List<?>) value : Collections.singletonList(value);
+    }
+
+    void resolveReferencePath(String idAttributeName) {
+        referencePath = parameter.path + JpaJsonSearch.DOT + idAttributeName;
+        reference = false;
+    }
+
+    void resolveReferences(Map<Object, ?> entities) {
+        logger.trace("Resolving references");
+
+        List<Object> resolved = new ArrayList<>();
+        for (Object id : getReferenceIds()) {
+            Object entity = entities.get(id);
             if (entity == null)
                 throw new JpaJsonSearchException("Reference error");
 
-            return entity;
-        }
-        else {
-            return JpaUtils.parseParam(value, type);
+            resolved.add(entity);
         }
+
+        value = value instanceof List ? resolved : resolved.get(0);
+        reference = false;
+    }
+
+    private void checkOperator() {
+        if (operator.isCollection() != parameter.isCollection())
+            throw new JpaJsonSearchException("Operator " + operator + " not supported by parameter " + name);
+
+        search.getLimits().checkOperator(name, operator);
+        search.countParsedCondition();
     }
 
     @Override
-    JpaJsonSearchFilter parse(JsonNode jsonNode) {
+    JpaJsonSearchFilter parse(JsonParser parser) throws IOException {
         logger.trace("Parsing condition filter");
 
-        if (jsonNode.size() == 0) {
-            operator = Operator.parse(jsonNode.asText());
+        if (parser.currentToken().isScalarValue()) {
+            operator = Operator.parse(parser.getText());
 
             if (operator.hasValue)
                 throw new JpaJsonSearchException("Provided operator requires a value");
+
+            checkOperator();
+
+            return this;
         }
-        else if (jsonNode.size() == 1) {
-            Map.Entry<String, JsonNode> child = jsonNode.fields().next();
 
-            operator = Operator.parse(child.getKey());
+        if (parser.currentToken() != JsonToken.START_OBJECT || parser.nextToken() != JsonToken.FIELD_NAME)
+            throw new JpaJsonSearchException("Expected condition filter element to have a single child");
 
-            if (child.getValue().isNull()) {
-                this.omit = true;
-                return this;
-            }
+        operator = Operator.parse(parser.currentName());
 
-            if (child.getValue().isArray()) {
-                ArrayNode arrayNode = (ArrayNode) child.getValue();
-                value = StreamSupport.stream(arrayNode.spliterator(), false)
-                        .map(jn ->  parseParam(jn.asText(), parameter.type))
-                        .collect(Collectors.toList());
-            }
-            else {
-                value = parseParam(child.getValue().asText(), parameter.type);
-            }
+        checkOperator();
 
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NULL) {
+            this.omit = true;
+        }
+        else if (operator.isCollection()) {
+            // The nested filter is evaluated against the collection elements
+            elementFilter = new JpaJsonSearchFilterLogical<>(search, logicalContainer(), JpaJsonSearchFilterLogical.Conjunction.AND);
+            elementFilter.parse(parser);
+        }
+        else {
             if (!operator.hasValue)
                 throw new JpaJsonSearchException("Provided operator doesn't support a value");
+
+            reference = parameter.reference;
+
+            // Values are converted straight from the tokens, without building an intermediate tree
+            if (token == JsonToken.START_ARRAY) {
+                List<Object> values = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    values.add(parameter.parseValue(parser));
+                    search.getLimits().checkListSize(values.size());
+                }
+
+                value = values;
+            }
+            else {
+                value = parameter.parseValue(parser);
+            }
         }
-        else {
+
+        if (parser.nextToken() != JsonToken.END_OBJECT)
             throw new JpaJsonSearchException("Expected condition filter element to have a single child");
-        }
 
         if ((operator == Operator.LIKE_WILDCARD || operator == Operator.NOT_LIKE_WILDCARD) && value instanceof String)
             value = JpaJsonSearch.PERCENT + value + JpaJsonSearch.PERCENT;
@@ -221,6 +500,14 @@ public class JpaJsonSearchFilterCondition<T> extends JpaJsonSearchFilter<T> {
         return this;
     }
 
+    @Override
+    void collectConditions(List<JpaJsonSearchFilterCondition<?>> conditions) {
+        conditions.add(this);
+
+        if (elementFilter != null)
+            elementFilter.collectConditions(conditions);
+    }
+
     @Override
     void remove() {
 
@@ -237,4 +524,8 @@ public class JpaJsonSearchFilterCondition<T> extends JpaJsonSearchFilter<T> {
     public Object getValue() {
         return value;
     }
+
+    public JpaJsonSearchFilterLogical getElementFilter() {
+        return elementFilter;
+    }
 }
@@ -1,15 +1,12 @@
 package it.mgt.uti.jpajsonsearch;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.util.*;
 import java.util.stream.Collectors;
 
 public class JpaJsonSearchFilterLogical<T> extends JpaJsonSearchFilter<T> {
@@ -48,76 +45,296 @@ public class JpaJsonSearchFilterLogical<T> extends JpaJsonSearchFilter<T> {
     }
 
     @Override
-    JpaJsonSearchJpqlAndParams buildJpql() {
+    void buildJpql(JpaJsonSearchJpqlAndParams jpql) {
         logger.trace("Building JPQL");
 
-        JpaJsonSearchJpqlAndParams jpqlAndParams = new JpaJsonSearchJpqlAndParams();
+        int start = jpql.length();
 
-        if (filters.size() == 0)
-            return jpqlAndParams;
-
-        jpqlAndParams.append(JpaJsonSearch.OPEN_PARENTHESIS);
+        jpql.append(JpaJsonSearch.OPEN_PARENTHESIS);
 
         boolean first = true;
         for (JpaJsonSearchFilter filter : filters) {
-            JpaJsonSearchJpqlAndParams filterJpqlAndParams = filter.buildJpql();
+            int mark = jpql.length();
 
-            if (filterJpqlAndParams.isEmpty())
-                continue;
+            if (!first)
+                jpql.append(conjunction.jpql);
 
-            if (first)
-                first = false;
-            else
-                jpqlAndParams.append(conjunction.jpql);
+            int filterStart = jpql.length();
+            filter.buildJpql(jpql);
 
-            jpqlAndParams.append(filterJpqlAndParams);
+            // Filters writing nothing, like omitted conditions, don't get a conjunction
+            if (jpql.length() == filterStart)
+                jpql.truncate(mark);
+            else
+                first = false;
         }
 
-        jpqlAndParams.append(JpaJsonSearch.CLOSE_PARENTHESIS);
+        if (first)
+            jpql.truncate(start);
+        else
+            jpql.append(JpaJsonSearch.CLOSE_PARENTHESIS);
+    }
+
+    @Override
+    void buildShape(StringBuilder shape) {
+        shape.append(conjunction.name())
+                .append(JpaJsonSearch.OPEN_PARENTHESIS);
+
+        for (JpaJsonSearchFilter filter : filters)
+            filter.buildShape(shape);
 
-        return jpqlAndParams;
+        shape.append(JpaJsonSearch.CLOSE_PARENTHESIS);
     }
 
     @Override
-    JpaJsonSearchFilter parse(JsonNode jsonNode) {
-        logger.trace("Parsing logical filter");
+    void collectParams(List<Object> params) {
+        for (JpaJsonSearchFilter<?> filter : filters)
+            filter.collectParams(params);
+    }
 
-        if (jsonNode == null)
-            return this;
+    @Override
+    void collectConditions(List<JpaJsonSearchFilterCondition<?>> conditions) {
+        for (JpaJsonSearchFilter<?> filter : filters)
+            filter.collectConditions(conditions);
+    }
 
-        if (!jsonNode.isArray())
+    @Override
+    JpaJsonSearchFilter parse(JsonParser parser) throws IOException {
+        logger.trace("Parsing logical filter");
+
+        if (parser.currentToken() != JsonToken.START_ARRAY)
             throw new JpaJsonSearchException("Expected logical filter to be an array node");
 
-        ArrayNode arrayNode = (ArrayNode) jsonNode;
-        for (Iterator<JsonNode> it = arrayNode.elements(); it.hasNext(); ) {
-            JsonNode elementNode = it.next();
+        search.getLimits().checkDepth(depth());
 
-            if (!elementNode.isObject())
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT)
                 throw new JpaJsonSearchException("Expected logical filter element to be an object node");
 
-            ObjectNode elementObjectNode = (ObjectNode) elementNode;
-
-            if (elementObjectNode.size() != 1)
+            if (parser.nextToken() != JsonToken.FIELD_NAME)
                 throw new JpaJsonSearchException("Expected logical filter element to have a single child");
 
-            Map.Entry<String, JsonNode> child = elementNode.fields().next();
+            String key = parser.currentName();
+            parser.nextToken();
 
-            switch (child.getKey()) {
+            switch (key) {
                 case "$and":
-                    and().parse(child.getValue());
+                    and().parse(parser);
                     break;
                 case "$or":
-                    or().parse(child.getValue());
+                    or().parse(parser);
                     break;
                 default:
-                    filters.add(new JpaJsonSearchFilterCondition<>(search, this, child.getKey()).parse(child.getValue()));
+                    filters.add(new JpaJsonSearchFilterCondition<>(search, this, key).parse(parser));
                     break;
             }
+
+            if (parser.nextToken() != JsonToken.END_OBJECT)
+                throw new JpaJsonSearchException("Expected logical filter element to have a single child");
         }
 
         return this;
     }
 
+    private static void addFlattened(List<JpaJsonSearchFilter> filters, JpaJsonSearchFilterLogical<?> container, JpaJsonSearchFilter filter) {
+        if (filter instanceof JpaJsonSearchFilterCondition) {
+            if (!((JpaJsonSearchFilterCondition) filter).isOmit()) {
+                filter.setLogicalContainer(container);
+                filters.add(filter);
+            }
+
+            return;
+        }
+
+        JpaJsonSearchFilterLogical<?> logical = (JpaJsonSearchFilterLogical) filter;
+
+        // Empty groups are pruned, single child groups and groups with the same conjunction are flattened
+        if (logical.filters.size() > 1 && logical.conjunction != container.conjunction) {
+            filter.setLogicalContainer(container);
+            filters.add(filter);
+            return;
+        }
+
+        for (JpaJsonSearchFilter child : logical.filters)
+            addFlattened(filters, container, child);
+    }
+
+    private static List<JpaJsonSearchFilter> dedupe(List<JpaJsonSearchFilter> filters) {
+        List<JpaJsonSearchFilter> deduped = new ArrayList<>();
+        Set<List<Object>> keys = new HashSet<>();
+
+        for (JpaJsonSearchFilter<?> filter : filters) {
+            StringBuilder shape = new StringBuilder();
+            filter.buildShape(shape);
+
+            List<Object> params = new ArrayList<>();
+            filter.collectParams(params);
+
+            if (keys.add(Arrays.asList(shape.toString(), params)))
+                deduped.add(filter);
+        }
+
+        return deduped;
+    }
+
+    private static JpaJsonSearchFilterCondition<?> findSameParameter(List<JpaJsonSearchFilterCondition> conditions, JpaJsonSearchFilterCondition<?> condition) {
+        for (JpaJsonSearchFilterCondition<?> c : conditions)
+            if (c.isSameParameter(condition))
+                return c;
+
+        return null;
+    }
+
+    private static List<JpaJsonSearchFilter> foldEquals(List<JpaJsonSearchFilter> filters) {
+        List<JpaJsonSearchFilter> folded = new ArrayList<>();
+        List<JpaJsonSearchFilterCondition> heads = new ArrayList<>();
+        Map<JpaJsonSearchFilterCondition, Set<Object>> values = new HashMap<>();
+        Map<JpaJsonSearchFilterCondition, Integer> counts = new HashMap<>();
+
+        for (JpaJsonSearchFilter filter : filters) {
+            JpaJsonSearchFilterCondition<?> condition = filter instanceof JpaJsonSearchFilterCondition ? (JpaJsonSearchFilterCondition) filter : null;
+
+            boolean foldable = condition != null
+                    && ((condition.getOperator() == JpaJsonSearchFilterCondition.Operator.EQ && condition.getValue() != null && !(condition.getValue() instanceof List))
+                    || (condition.getOperator() == JpaJsonSearchFilterCondition.Operator.IN && condition.getValue() instanceof List && !((List<?>) condition.getValue()).isEmpty()));
+
+            if (!foldable) {
+                folded.add(filter);
+                continue;
+            }
+
+            JpaJsonSearchFilterCondition<?> head = findSameParameter(heads, condition);
+            if (head == null) {
+                head = condition;
+                heads.add(head);
+                values.put(head, new LinkedHashSet<>());
+                counts.put(head, 0);
+                folded.add(head);
+            }
+
+            if (condition.getValue() instanceof List)
+                values.get(head).addAll((List<?>) condition.getValue());
+            else
+                values.get(head).add(condition.getValue());
+
+            counts.put(head, counts.get(head) + 1);
+        }
+
+        for (JpaJsonSearchFilterCondition<?> head : heads) {
+            if (counts.get(head) < 2)
+                continue;
+
+            Set<Object> headValues = values.get(head);
+            JpaJsonSearchFilterCondition<?> condition = headValues.size() == 1
+                    ? head.derive(JpaJsonSearchFilterCondition.Operator.EQ, headValues.iterator().next())
+                    : head.derive(JpaJsonSearchFilterCondition.Operator.IN, new ArrayList<>(headValues));
+
+            folded.set(folded.indexOf(head), condition);
+        }
+
+        return folded;
+    }
+
+    private List<JpaJsonSearchFilter> mergeRanges(List<JpaJsonSearchFilter> filters) {
+        List<JpaJsonSearchFilter> merged = new ArrayList<>();
+        List<JpaJsonSearchFilterCondition> heads = new ArrayList<>();
+        Map<JpaJsonSearchFilterCondition, List<JpaJsonSearchFilterRange>> ranges = new HashMap<>();
+
+        for (JpaJsonSearchFilter filter : filters) {
+            JpaJsonSearchFilterRange range = filter instanceof JpaJsonSearchFilterCondition ? JpaJsonSearchFilterRange.of((JpaJsonSearchFilterCondition) filter) : null;
+            if (range == null) {
+                merged.add(filter);
+                continue;
+            }
+
+            JpaJsonSearchFilterCondition<?> condition = (JpaJsonSearchFilterCondition) filter;
+
+            JpaJsonSearchFilterCondition<?> head = null;
+            for (JpaJsonSearchFilterCondition<?> c : heads)
+                if (c.isSameParameter(condition) && ranges.get(c).get(0).isCompatible(range))
+                    head = c;
+
+            if (head == null) {
+                heads.add(condition);
+                ranges.put(condition, new ArrayList<>(Collections.singletonList(range)));
+                merged.add(condition);
+            }
+            else {
+                ranges.get(head).add(range);
+            }
+        }
+
+        for (JpaJsonSearchFilterCondition<?> head : heads) {
+            List<JpaJsonSearchFilterRange> headRanges = ranges.get(head);
+            if (headRanges.size() < 2)
+                continue;
+
+            List<JpaJsonSearchFilterCondition> conditions = new ArrayList<>();
+            if (conjunction == Conjunction.AND) {
+                JpaJsonSearchFilterRange range = headRanges.get(0);
+                for (int i = 1; i < headRanges.size(); ++i)
+                    range = range.intersect(headRanges.get(i));
+
+                conditions.addAll(range.buildConditions(head));
+            }
+            else {
+                for (JpaJsonSearchFilterRange range : unionAll(headRanges))
+                    conditions.addAll(range.buildConditions(head));
+            }
+
+            int index = merged.indexOf(head);
+            merged.remove(index);
+            merged.addAll(index, conditions);
+        }
+
+        return merged;
+    }
+
+    private static List<JpaJsonSearchFilterRange> unionAll(List<JpaJsonSearchFilterRange> ranges) {
+        List<JpaJsonSearchFilterRange> union = new ArrayList<>(ranges);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+
+            for (int i = 0; i < union.size() && !changed; ++i) {
+                for (int j = i + 1; j < union.size() && !changed; ++j) {
+                    JpaJsonSearchFilterRange range = union.get(i).union(union.get(j));
+                    if (range != null) {
+                        union.set(i, range);
+                        union.remove(j);
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        return union;
+    }
+
+    JpaJsonSearchFilterLogical<T> optimize() {
+        logger.trace("Optimizing logical filter");
+
+        for (JpaJsonSearchFilter filter : filters)
+            if (filter instanceof JpaJsonSearchFilterLogical)
+                ((JpaJsonSearchFilterLogical) filter).optimize();
+            else
+                ((JpaJsonSearchFilterCondition) filter).optimize();
+
+        List<JpaJsonSearchFilter> optimized = new ArrayList<>();
+        for (JpaJsonSearchFilter filter : filters)
+            addFlattened(optimized, this, filter);
+
+        optimized = dedupe(optimized);
+
+        if (conjunction == Conjunction.OR)
+            optimized = foldEquals(optimized);
+
+        filters = mergeRanges(optimized);
+
+        return this;
+    }
+
     int size() {
         return filters.size();
     }
@@ -162,6 +379,24 @@ public class JpaJsonSearchFilterLogical<T> extends JpaJsonSearchFilter<T> {
         return filter;
     }
 
+    private JpaJsonSearchFilterLogical addCollectionCondition(String name, JpaJsonSearchFilterCondition.Operator operator) {
+        JpaJsonSearchFilterCondition<T> condition = new JpaJsonSearchFilterCondition<>(search, this, name, operator);
+        filters.add(condition);
+        return condition.getElementFilter();
+    }
+
+    public JpaJsonSearchFilterLogical any(String name) {
+        return addCollectionCondition(name, JpaJsonSearchFilterCondition.Operator.ANY);
+    }
+
+    public JpaJsonSearchFilterLogical all(String name) {
+        return addCollectionCondition(name, JpaJsonSearchFilterCondition.Operator.ALL);
+    }
+
+    public JpaJsonSearchFilterLogical none(String name) {
+        return addCollectionCondition(name, JpaJsonSearchFilterCondition.Operator.NONE);
+    }
+
     private JpaJsonSearchFilterLogical addFilterCondition(String name, JpaJsonSearchFilterCondition.Operator operator, Object value) {
         filters.add(new JpaJsonSearchFilterCondition<>(search, this, name, operator, value));
         return this;
@@ -220,6 +455,42 @@ public class JpaJsonSearchFilterLogical<T> extends JpaJsonSearchFilter<T> {
         return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.NOT_LIKE_WILDCARD, value);
     }
 
+    public JpaJsonSearchFilterLogical contains(String name, String value) {
+        return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.CONTAINS, value);
+    }
+
+    public JpaJsonSearchFilterLogical notContains(String name, String value) {
+        return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.NOT_CONTAINS, value);
+    }
+
+    public JpaJsonSearchFilterLogical startsWith(String name, String value) {
+        return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.STARTS_WITH, value);
+    }
+
+    public JpaJsonSearchFilterLogical endsWith(String name, String value) {
+        return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.ENDS_WITH, value);
+    }
+
+    public JpaJsonSearchFilterLogical equalIgnoreCase(String name, String value) {
+        return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.EQ_IGNORE_CASE, value);
+    }
+
+    public JpaJsonSearchFilterLogical containsIgnoreCase(String name, String value) {
+        return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.CONTAINS_IGNORE_CASE, value);
+    }
+
+    public JpaJsonSearchFilterLogical notContainsIgnoreCase(String name, String value) {
+        return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.NOT_CONTAINS_IGNORE_CASE, value);
+    }
+
+    public JpaJsonSearchFilterLogical startsWithIgnoreCase(String name, String value) {
+        return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.STARTS_WITH_IGNORE_CASE, value);
+    }
+
+    public JpaJsonSearchFilterLogical endsWithIgnoreCase(String name, String value) {
+        return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.ENDS_WITH_IGNORE_CASE, value);
+    }
+
     public JpaJsonSearchFilterLogical isNull(String name) {
         return addFilterCondition(name, JpaJsonSearchFilterCondition.Operator.NULL);
     }
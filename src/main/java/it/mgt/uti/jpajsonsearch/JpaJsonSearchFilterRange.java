@@ -0,0 +1,148 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.time.temporal.Temporal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Interval on a single parameter, used by the optimizer to merge range conditions. A null bound is unbounded. Only
+ * numeric and temporal values are merged, since the Java ordering of strings and enums may differ from the database one.
+ */
+class JpaJsonSearchFilterRange {
+
+    private final Class<?> valueType;
+    private final Comparable lower;
+    private final boolean lowerInclusive;
+    private final Comparable upper;
+    private final boolean upperInclusive;
+
+    private JpaJsonSearchFilterRange(Class<?> valueType, Comparable lower, boolean lowerInclusive, Comparable upper, boolean upperInclusive) {
+        this.valueType = valueType;
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+    }
+
+    static JpaJsonSearchFilterRange of(JpaJsonSearchFilterCondition<?> condition) {
+        if (condition.isOmit() || condition.isUnresolvedReference())
+            return null;
+
+        Object value = condition.getValue();
+
+        switch (condition.getOperator()) {
+            case GT:
+                return isComparable(value) ? new JpaJsonSearchFilterRange(value.getClass(), (Comparable) value, false, null, false) : null;
+            case GTE:
+                return isComparable(value) ? new JpaJsonSearchFilterRange(value.getClass(), (Comparable) value, true, null, false) : null;
+            case LT:
+                return isComparable(value) ? new JpaJsonSearchFilterRange(value.getClass(), null, false, (Comparable) value, false) : null;
+            case LTE:
+                return isComparable(value) ? new JpaJsonSearchFilterRange(value.getClass(), null, false, (Comparable) value, true) : null;
+            case BETWEEN:
+                if (!(value instanceof List) || ((List<?>) value).size() != 2)
+                    return null;
+
+                Object first = ((List<?>) value).get(0);
+                Object second = ((List<?>) value).get(1);
+                if (!isComparable(first) || !isComparable(second) || first.getClass() != second.getClass())
+                    return null;
+
+                return new JpaJsonSearchFilterRange(first.getClass(), (Comparable) first, true, (Comparable) second, true);
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isComparable(Object value) {
+        return value instanceof Comparable && (value instanceof Number || value instanceof Date || value instanceof Temporal);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Comparable a, Comparable b) {
+        return a.compareTo(b);
+    }
+
+    boolean isCompatible(JpaJsonSearchFilterRange other) {
+        return valueType == other.valueType;
+    }
+
+    JpaJsonSearchFilterRange intersect(JpaJsonSearchFilterRange other) {
+        Comparable lower = this.lower;
+        boolean lowerInclusive = this.lowerInclusive;
+        if (lower == null || (other.lower != null && compare(other.lower, lower) > 0)) {
+            lower = other.lower;
+            lowerInclusive = other.lowerInclusive;
+        }
+        else if (other.lower != null && compare(other.lower, lower) == 0) {
+            lowerInclusive &= other.lowerInclusive;
+        }
+
+        Comparable upper = this.upper;
+        boolean upperInclusive = this.upperInclusive;
+        if (upper == null || (other.upper != null && compare(other.upper, upper) < 0)) {
+            upper = other.upper;
+            upperInclusive = other.upperInclusive;
+        }
+        else if (other.upper != null && compare(other.upper, upper) == 0) {
+            upperInclusive &= other.upperInclusive;
+        }
+
+        return new JpaJsonSearchFilterRange(valueType, lower, lowerInclusive, upper, upperInclusive);
+    }
+
+    private boolean isBelow(JpaJsonSearchFilterRange other) {
+        if (upper == null || other.lower == null)
+            return false;
+
+        int c = compare(upper, other.lower);
+        return c < 0 || (c == 0 && !upperInclusive && !other.lowerInclusive);
+    }
+
+    JpaJsonSearchFilterRange union(JpaJsonSearchFilterRange other) {
+        // Disjoint ranges can't be expressed by a single range
+        if (isBelow(other) || other.isBelow(this))
+            return null;
+
+        Comparable lower = null;
+        boolean lowerInclusive = false;
+        if (this.lower != null && other.lower != null) {
+            int c = compare(this.lower, other.lower);
+            lower = c <= 0 ? this.lower : other.lower;
+            lowerInclusive = c < 0 ? this.lowerInclusive : c > 0 ? other.lowerInclusive : this.lowerInclusive || other.lowerInclusive;
+        }
+
+        Comparable upper = null;
+        boolean upperInclusive = false;
+        if (this.upper != null && other.upper != null) {
+            int c = compare(this.upper, other.upper);
+            upper = c >= 0 ? this.upper : other.upper;
+            upperInclusive = c > 0 ? this.upperInclusive : c < 0 ? other.upperInclusive : this.upperInclusive || other.upperInclusive;
+        }
+
+        // Unbounded on both sides would only mean not null
+        if (lower == null && upper == null)
+            return null;
+
+        return new JpaJsonSearchFilterRange(valueType, lower, lowerInclusive, upper, upperInclusive);
+    }
+
+    List<JpaJsonSearchFilterCondition> buildConditions(JpaJsonSearchFilterCondition<?> condition) {
+        List<JpaJsonSearchFilterCondition> conditions = new ArrayList<>();
+
+        if (lower != null && upper != null && lowerInclusive && upperInclusive) {
+            conditions.add(condition.derive(JpaJsonSearchFilterCondition.Operator.BETWEEN, Arrays.asList(lower, upper)));
+            return conditions;
+        }
+
+        if (lower != null)
+            conditions.add(condition.derive(lowerInclusive ? JpaJsonSearchFilterCondition.Operator.GTE : JpaJsonSearchFilterCondition.Operator.GT, lower));
+
+        if (upper != null)
+            conditions.add(condition.derive(upperInclusive ? JpaJsonSearchFilterCondition.Operator.LTE : JpaJsonSearchFilterCondition.Operator.LT, upper));
+
+        return conditions;
+    }
+}
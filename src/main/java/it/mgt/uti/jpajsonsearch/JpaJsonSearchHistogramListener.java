@@ -0,0 +1,189 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps in memory latency histograms per entity type, search shape and phase. Latencies are bucketed by powers of
+ * two nanoseconds, so percentiles are upper bounds within a factor of two. The least recently updated histograms are
+ * evicted beyond the max size, 1000 by default.
+ */
+public class JpaJsonSearchHistogramListener implements JpaJsonSearchListener {
+
+    public static class Key {
+
+        private final Class<?> type;
+        private final String shape;
+        private final JpaJsonSearchEvent.Phase phase;
+
+        Key(Class<?> type, String shape, JpaJsonSearchEvent.Phase phase) {
+            this.type = type;
+            this.shape = shape;
+            this.phase = phase;
+        }
+
+        public Class<?> getType() {
+            return type;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public JpaJsonSearchEvent.Phase getPhase() {
+            return phase;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+
+            if (o == null || getClass() != o.getClass())
+                return false;
+
+            Key key = (Key) o;
+            return type.equals(key.type) && shape.equals(key.shape) && phase == key.phase;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, shape, phase);
+        }
+    }
+
+    public static class Histogram {
+
+        private final String shape;
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+
+        Histogram(String shape) {
+            this.shape = shape;
+        }
+
+        void record(long nanos, long rows) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(nanos, 1)) - 1);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+
+            if (rows > 0)
+                this.rows.addAndGet(rows);
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long getRows() {
+            return rows.get();
+        }
+
+        public double getMeanNanos() {
+            long count = this.count.get();
+            return count == 0 ? 0 : (double) totalNanos.get() / count;
+        }
+
+        public long getPercentileNanos(double percentile) {
+            long count = this.count.get();
+            if (count == 0)
+                return 0;
+
+            long threshold = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); ++i) {
+                seen += buckets.get(i);
+                if (seen >= threshold)
+                    return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, maxNanos.get());
+            }
+
+            return maxNanos.get();
+        }
+    }
+
+    private final int maxSize;
+    private final Map<Key, Histogram> histograms;
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public JpaJsonSearchHistogramListener() {
+        this(1000);
+    }
+
+    public JpaJsonSearchHistogramListener(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Expected max size to be positive");
+
+        this.maxSize = maxSize;
+        this.histograms = new LinkedHashMap<Key, Histogram>(16, 0.75f, true) {
+
+            private final static long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Histogram> eldest) {
+                if (size() <= JpaJsonSearchHistogramListener.this.maxSize)
+                    return false;
+
+                evictions.incrementAndGet();
+                return true;
+            }
+
+        };
+    }
+
+    @Override
+    public void onEvent(JpaJsonSearchEvent event) {
+        Histogram histogram;
+        synchronized (histograms) {
+            histogram = histograms.computeIfAbsent(new Key(event.getType(), event.getShape(), event.getPhase()), k -> new Histogram(event.getShape()));
+        }
+
+        histogram.record(event.getNanos(), event.getRows());
+    }
+
+    public Map<Key, Histogram> getHistograms() {
+        synchronized (histograms) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(histograms));
+        }
+    }
+
+    public Histogram getHistogram(Class<?> type, String shape, JpaJsonSearchEvent.Phase phase) {
+        synchronized (histograms) {
+            return histograms.get(new Key(type, shape, phase));
+        }
+    }
+
+    public void clear() {
+        synchronized (histograms) {
+            histograms.clear();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
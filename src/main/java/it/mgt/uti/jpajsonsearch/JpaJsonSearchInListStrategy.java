@@ -0,0 +1,88 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How list values of IN and NOT IN conditions are bound: padded to a power of two so that fewer distinct
+ * statements reach the statement caches, and split into chunks of a maximum size to stay within parameter limits.
+ */
+public class JpaJsonSearchInListStrategy {
+
+    public final static JpaJsonSearchInListStrategy NONE = new JpaJsonSearchInListStrategy(false, 0);
+    public final static JpaJsonSearchInListStrategy PADDED = new JpaJsonSearchInListStrategy(true, 0);
+
+    private final boolean padding;
+    private final int chunkSize;
+
+    private JpaJsonSearchInListStrategy(boolean padding, int chunkSize) {
+        this.padding = padding;
+        this.chunkSize = chunkSize;
+    }
+
+    public static JpaJsonSearchInListStrategy chunked(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new JpaJsonSearchException("Expected IN list chunk size to be positive");
+
+        return new JpaJsonSearchInListStrategy(false, chunkSize);
+    }
+
+    public static JpaJsonSearchInListStrategy paddedChunked(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new JpaJsonSearchException("Expected IN list chunk size to be positive");
+
+        return new JpaJsonSearchInListStrategy(true, chunkSize);
+    }
+
+    public boolean isPadding() {
+        return padding;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    int countChunks(int size) {
+        if (chunkSize <= 0 || size <= chunkSize)
+            return 1;
+
+        return (size + chunkSize - 1) / chunkSize;
+    }
+
+    List<List<?>> split(List<?> values) {
+        if (!padding && countChunks(values.size()) == 1)
+            return Collections.singletonList(values);
+
+        List<List<?>> chunks = new ArrayList<>();
+
+        int size = chunkSize > 0 ? chunkSize : values.size();
+        for (int i = 0; i < values.size(); i += size) {
+            List<Object> chunk = new ArrayList<>(values.subList(i, Math.min(i + size, values.size())));
+
+            if (padding)
+                pad(chunk);
+
+            chunks.add(chunk);
+        }
+
+        if (chunks.isEmpty())
+            chunks.add(values);
+
+        return chunks;
+    }
+
+    private void pad(List<Object> chunk) {
+        int size = Integer.highestOneBit(chunk.size());
+        if (size < chunk.size())
+            size <<= 1;
+
+        if (chunkSize > 0)
+            size = Math.min(size, chunkSize);
+
+        // Repeating a value doesn't change the outcome of IN nor of NOT IN
+        Object last = chunk.get(chunk.size() - 1);
+        while (chunk.size() < size)
+            chunk.add(last);
+    }
+}
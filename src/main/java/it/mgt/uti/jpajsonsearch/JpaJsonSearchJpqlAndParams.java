@@ -1,37 +1,27 @@
 package it.mgt.uti.jpajsonsearch;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Single accumulator the whole search writes its JPQL and ordered parameters into.
+ */
 public class JpaJsonSearchJpqlAndParams {
 
-    StringBuilder jpql;
-    Map<String, Object> params;
+    private final static int DEFAULT_CAPACITY = 512;
 
-    public JpaJsonSearchJpqlAndParams() {
-        this.jpql = new StringBuilder();
-        this.params = new HashMap<>();
-    }
-
-    public JpaJsonSearchJpqlAndParams(CharSequence jpql) {
-        this.jpql = new StringBuilder(jpql);
-        this.params = new HashMap<>();
-    }
-
-    public JpaJsonSearchJpqlAndParams(StringBuilder jpql) {
-        this.jpql = jpql;
-        this.params = new HashMap<>();
-    }
+    final StringBuilder jpql;
+    final List<String> names;
+    final List<Object> values;
 
-    public JpaJsonSearchJpqlAndParams(StringBuilder jpql, String name, Object param) {
-        this.jpql = jpql;
-        this.params = new HashMap<>();
-        this.params.put(name, param);
+    public JpaJsonSearchJpqlAndParams() {
+        this(DEFAULT_CAPACITY);
     }
 
-    public JpaJsonSearchJpqlAndParams(StringBuilder jpql, Map<String, Object> params) {
-        this.jpql = jpql;
-        this.params = params;
+    public JpaJsonSearchJpqlAndParams(int capacity) {
+        this.jpql = new StringBuilder(capacity);
+        this.names = new ArrayList<>();
+        this.values = new ArrayList<>();
     }
 
     JpaJsonSearchJpqlAndParams append(CharSequence jpql) {
@@ -39,19 +29,31 @@ public class JpaJsonSearchJpqlAndParams {
         return this;
     }
 
-    JpaJsonSearchJpqlAndParams append(Map<String, Object> params) {
-        this.params.putAll(params);
+    JpaJsonSearchJpqlAndParams appendParameter(String name, Object value) {
+        jpql.append(JpaJsonSearch.COLON)
+                .append(name);
+        names.add(name);
+        values.add(value);
         return this;
     }
 
     JpaJsonSearchJpqlAndParams append(JpaJsonSearchJpqlAndParams jpqlAndParams) {
         jpql.append(jpqlAndParams.jpql);
-        params.putAll(jpqlAndParams.params);
+        names.addAll(jpqlAndParams.names);
+        values.addAll(jpqlAndParams.values);
         return this;
     }
 
+    int length() {
+        return jpql.length();
+    }
+
+    void truncate(int length) {
+        jpql.setLength(length);
+    }
+
     boolean isEmpty() {
-        return this.jpql.length() == 0 && this.params.size() == 0;
+        return jpql.length() == 0 && names.isEmpty();
     }
 
 }
@@ -0,0 +1,258 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.util.*;
+
+/**
+ * Complexity budget enforced while a search is parsed, before any database work: filter depth, number of conditions,
+ * IN list size, page size and offset, operators and sorts allowed per parameter, and an estimated cost above which a
+ * search is rejected or degraded. Zero means unlimited. Conditions added through the filter API are not checked.
+ */
+public class JpaJsonSearchLimits {
+
+    final static int CONDITION_COST = 1;
+    final static int SCAN_COST = 10;
+    final static int SUBQUERY_COST = 5;
+    final static int SORT_COST = 1;
+    final static int LIST_VALUES_PER_COST = 100;
+    final static int OFFSET_ROWS_PER_COST = 1000;
+
+    public final static JpaJsonSearchLimits NONE = builder().build();
+
+    public static class Builder {
+
+        private int maxDepth;
+        private int maxConditions;
+        private int maxListSize;
+        private int maxPageSize;
+        private boolean clampPageSize;
+        private long maxOffset;
+        private final Map<String, Set<JpaJsonSearchFilterCondition.Operator>> allowedOperators = new HashMap<>();
+        private Set<String> allowedSorts;
+        private int maxCost;
+        private int degradeCost;
+        private JpaJsonSearchCountStrategy degradeCountStrategy;
+
+        private Builder() {
+        }
+
+        public Builder maxDepth(int maxDepth) {
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        public Builder maxConditions(int maxConditions) {
+            this.maxConditions = maxConditions;
+            return this;
+        }
+
+        public Builder maxListSize(int maxListSize) {
+            this.maxListSize = maxListSize;
+            return this;
+        }
+
+        public Builder maxPageSize(int maxPageSize) {
+            this.maxPageSize = maxPageSize;
+            return this;
+        }
+
+        // Unpaged or oversized requests get the max page size instead of being rejected
+        public Builder clampPageSize(boolean clampPageSize) {
+            this.clampPageSize = clampPageSize;
+            return this;
+        }
+
+        public Builder maxOffset(long maxOffset) {
+            this.maxOffset = maxOffset;
+            return this;
+        }
+
+        public Builder allowOperators(String parameter, String... operators) {
+            Set<JpaJsonSearchFilterCondition.Operator> allowed = allowedOperators.computeIfAbsent(parameter, k -> EnumSet.noneOf(JpaJsonSearchFilterCondition.Operator.class));
+            for (String operator : operators)
+                allowed.add(JpaJsonSearchFilterCondition.Operator.parse(operator));
+
+            return this;
+        }
+
+        public Builder allowSorts(String... parameters) {
+            if (allowedSorts == null)
+                allowedSorts = new HashSet<>();
+
+            allowedSorts.addAll(Arrays.asList(parameters));
+            return this;
+        }
+
+        public Builder maxCost(int maxCost) {
+            this.maxCost = maxCost;
+            return this;
+        }
+
+        public Builder degradeCost(int degradeCost, JpaJsonSearchCountStrategy countStrategy) {
+            this.degradeCost = degradeCost;
+            this.degradeCountStrategy = countStrategy;
+            return this;
+        }
+
+        public JpaJsonSearchLimits build() {
+            return new JpaJsonSearchLimits(this);
+        }
+    }
+
+    private final int maxDepth;
+    private final int maxConditions;
+    private final int maxListSize;
+    private final int maxPageSize;
+    private final boolean clampPageSize;
+    private final long maxOffset;
+    private final Map<String, Set<JpaJsonSearchFilterCondition.Operator>> allowedOperators;
+    private final Set<String> allowedSorts;
+    private final int maxCost;
+    private final int degradeCost;
+    private final JpaJsonSearchCountStrategy degradeCountStrategy;
+
+    private JpaJsonSearchLimits(Builder builder) {
+        this.maxDepth = builder.maxDepth;
+        this.maxConditions = builder.maxConditions;
+        this.maxListSize = builder.maxListSize;
+        this.maxPageSize = builder.maxPageSize;
+        this.clampPageSize = builder.clampPageSize;
+        this.maxOffset = builder.maxOffset;
+        this.allowedOperators = new HashMap<>();
+        builder.allowedOperators.forEach((k, v) -> allowedOperators.put(k, EnumSet.copyOf(v)));
+        this.allowedSorts = builder.allowedSorts != null ? new HashSet<>(builder.allowedSorts) : null;
+        this.maxCost = builder.maxCost;
+        this.degradeCost = builder.degradeCost;
+        this.degradeCountStrategy = builder.degradeCountStrategy;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    void checkDepth(int depth) {
+        if (maxDepth > 0 && depth > maxDepth)
+            throw new JpaJsonSearchException("Filter depth exceeds the limit of " + maxDepth);
+    }
+
+    void checkConditions(int conditions) {
+        if (maxConditions > 0 && conditions > maxConditions)
+            throw new JpaJsonSearchException("Filter conditions exceed the limit of " + maxConditions);
+    }
+
+    void checkListSize(int size) {
+        if (maxListSize > 0 && size > maxListSize)
+            throw new JpaJsonSearchException("List size exceeds the limit of " + maxListSize);
+    }
+
+    void checkOperator(String parameter, JpaJsonSearchFilterCondition.Operator operator) {
+        Set<JpaJsonSearchFilterCondition.Operator> allowed = allowedOperators.get(parameter);
+        if (allowed != null && !allowed.contains(operator))
+            throw new JpaJsonSearchException("Operator " + operator + " not allowed on parameter " + parameter);
+    }
+
+    void checkSort(String parameter) {
+        if (allowedSorts != null && !allowedSorts.contains(parameter))
+            throw new JpaJsonSearchException("Sort on parameter " + parameter + " not allowed");
+    }
+
+    // Returns the page size to use, unpaged requests have a negative one
+    int checkPageSize(int pageSize) {
+        if (maxPageSize <= 0 || (pageSize >= 0 && pageSize <= maxPageSize))
+            return pageSize;
+
+        if (!clampPageSize)
+            throw new JpaJsonSearchException("Page size exceeds the limit of " + maxPageSize);
+
+        return maxPageSize;
+    }
+
+    void checkOffset(long offset) {
+        if (maxOffset > 0 && offset > maxOffset)
+            throw new JpaJsonSearchException("Offset exceeds the limit of " + maxOffset);
+    }
+
+    void checkCost(int cost) {
+        if (maxCost > 0 && cost > maxCost)
+            throw new JpaJsonSearchException("Search cost " + cost + " exceeds the limit of " + maxCost);
+    }
+
+    boolean isDegraded(int cost) {
+        return degradeCost > 0 && cost > degradeCost;
+    }
+
+    /**
+     * Rough relative cost: one per condition and sort, more for unanchored patterns and subqueries, long lists and
+     * deep offsets.
+     */
+    static int estimateCost(List<JpaJsonSearchFilterCondition<?>> conditions, int sorts, long offset) {
+        long cost = (long) sorts * SORT_COST + offset / OFFSET_ROWS_PER_COST;
+
+        for (JpaJsonSearchFilterCondition<?> condition : conditions) {
+            if (condition.isOmit())
+                continue;
+
+            cost += CONDITION_COST;
+
+            switch (condition.getOperator()) {
+                case LIKE:
+                case NOT_LIKE:
+                case LIKE_WILDCARD:
+                case NOT_LIKE_WILDCARD:
+                case CONTAINS:
+                case NOT_CONTAINS:
+                case ENDS_WITH:
+                case CONTAINS_IGNORE_CASE:
+                case NOT_CONTAINS_IGNORE_CASE:
+                case ENDS_WITH_IGNORE_CASE:
+                    cost += SCAN_COST;
+                    break;
+                case ANY:
+                case ALL:
+                case NONE:
+                    cost += SUBQUERY_COST;
+                    break;
+            }
+
+            if (condition.getValue() instanceof List)
+                cost += ((List<?>) condition.getValue()).size() / LIST_VALUES_PER_COST;
+        }
+
+        return (int) Math.min(cost, Integer.MAX_VALUE);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxConditions() {
+        return maxConditions;
+    }
+
+    public int getMaxListSize() {
+        return maxListSize;
+    }
+
+    public int getMaxPageSize() {
+        return maxPageSize;
+    }
+
+    public boolean isClampPageSize() {
+        return clampPageSize;
+    }
+
+    public long getMaxOffset() {
+        return maxOffset;
+    }
+
+    public int getMaxCost() {
+        return maxCost;
+    }
+
+    public int getDegradeCost() {
+        return degradeCost;
+    }
+
+    public JpaJsonSearchCountStrategy getDegradeCountStrategy() {
+        return degradeCountStrategy;
+    }
+}
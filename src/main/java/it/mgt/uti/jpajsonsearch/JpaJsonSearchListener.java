@@ -0,0 +1,11 @@
+package it.mgt.uti.jpajsonsearch;
+
+/**
+ * Receives the timings of each search phase. Listeners are shared by all the searches of a factory and may be
+ * notified concurrently, so implementations must be thread safe.
+ */
+public interface JpaJsonSearchListener {
+
+    void onEvent(JpaJsonSearchEvent event);
+
+}
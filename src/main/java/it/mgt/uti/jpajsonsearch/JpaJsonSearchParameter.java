@@ -1,12 +1,114 @@
 package it.mgt.uti.jpajsonsearch;
 
+import com.fasterxml.jackson.core.JsonParser;
+import it.mgt.util.jpa.JpaUtils;
+
+import javax.persistence.Entity;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
 class JpaJsonSearchParameter {
 
-    String path;
-    Class<?> type;
+    enum Conversion {
+
+        LONG,
+        INTEGER,
+        BIG_INTEGER,
+        BIG_DECIMAL,
+        DOUBLE,
+        BOOLEAN,
+        STRING,
+        OTHER;
+
+        static Conversion of(Class<?> type) {
+            if (type == Long.class || type == long.class)
+                return LONG;
+            if (type == Integer.class || type == int.class)
+                return INTEGER;
+            if (type == BigInteger.class)
+                return BIG_INTEGER;
+            if (type == BigDecimal.class)
+                return BIG_DECIMAL;
+            if (type == Double.class || type == double.class)
+                return DOUBLE;
+            if (type == Boolean.class || type == boolean.class)
+                return BOOLEAN;
+            if (type == String.class)
+                return STRING;
+
+            return OTHER;
+        }
+    }
+
+    final String path;
+    final Class<?> type;
+    final boolean reference;
+    final Class<?> valueType;
+    final Conversion conversion;
+    final String elementAlias;
 
     JpaJsonSearchParameter(String path, Class<?> type) {
         this.path = path;
         this.type = type;
+        this.elementAlias = null;
+
+        // Entity references are parsed as ids and resolved in batch by the search before executing
+        this.reference = JpaUtils.getAnnotation(type, Entity.class) != null;
+        this.valueType = reference ? JpaUtils.getIdClass(type) : type;
+        this.conversion = Conversion.of(valueType);
+    }
+
+    // Collection parameters are filtered through subqueries on their elements
+    JpaJsonSearchParameter(String path, String elementAlias) {
+        this.path = path;
+        this.type = null;
+        this.elementAlias = elementAlias;
+        this.reference = false;
+        this.valueType = null;
+        this.conversion = Conversion.OTHER;
+    }
+
+    boolean isCollection() {
+        return elementAlias != null;
+    }
+
+    Object parseValue(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NUMBER_INT:
+                switch (conversion) {
+                    case LONG:
+                        return parser.getLongValue();
+                    case INTEGER:
+                        return parser.getIntValue();
+                    case BIG_INTEGER:
+                        return parser.getBigIntegerValue();
+                    case BIG_DECIMAL:
+                        return parser.getDecimalValue();
+                }
+                break;
+            case VALUE_NUMBER_FLOAT:
+                switch (conversion) {
+                    case DOUBLE:
+                        return parser.getDoubleValue();
+                    case BIG_DECIMAL:
+                        return parser.getDecimalValue();
+                }
+                break;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                if (conversion == Conversion.BOOLEAN)
+                    return parser.getBooleanValue();
+                break;
+            case VALUE_STRING:
+                if (conversion == Conversion.STRING)
+                    return parser.getText();
+                break;
+            case START_OBJECT:
+            case START_ARRAY:
+                throw new JpaJsonSearchException("Expected condition value to be a scalar");
+        }
+
+        return JpaUtils.parseParam(parser.getText(), valueType);
     }
 }
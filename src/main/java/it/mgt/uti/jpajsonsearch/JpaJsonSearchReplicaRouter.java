@@ -0,0 +1,113 @@
+package it.mgt.uti.jpajsonsearch;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.QueryTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Routes the read queries of searches to read replicas, each on its own short lived entity manager, picked by a
+ * balancing policy. A query failing on a replica with a persistence error, other than a timeout, is run again on the
+ * primary.
+ */
+public class JpaJsonSearchReplicaRouter {
+
+    public static class Replica {
+
+        private final EntityManagerFactory emf;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong executions = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        private Replica(EntityManagerFactory emf) {
+            this.emf = emf;
+        }
+
+        public EntityManagerFactory getEntityManagerFactory() {
+            return emf;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getExecutions() {
+            return executions.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+    }
+
+    private final List<Replica> replicas;
+    private final JpaJsonSearchBalancingPolicy policy;
+
+    private final AtomicLong failovers = new AtomicLong();
+
+    public JpaJsonSearchReplicaRouter(List<EntityManagerFactory> replicas) {
+        this(replicas, JpaJsonSearchBalancingPolicy.roundRobin());
+    }
+
+    public JpaJsonSearchReplicaRouter(List<EntityManagerFactory> replicas, JpaJsonSearchBalancingPolicy policy) {
+        if (replicas.isEmpty())
+            throw new JpaJsonSearchException("Expected at least a replica");
+
+        List<Replica> list = new ArrayList<>();
+        for (EntityManagerFactory emf : replicas)
+            list.add(new Replica(emf));
+
+        this.replicas = Collections.unmodifiableList(list);
+        this.policy = policy;
+    }
+
+    <V> V execute(Function<EntityManager, V> function, Supplier<V> primary) {
+        Replica replica = policy.select(replicas);
+
+        replica.inFlight.incrementAndGet();
+        replica.executions.incrementAndGet();
+
+        try {
+            EntityManager em = replica.emf.createEntityManager();
+            try {
+                return function.apply(em);
+            }
+            finally {
+                em.close();
+            }
+        }
+        catch (QueryTimeoutException e) {
+            // A search too slow for a replica would only load the primary as well
+            replica.failures.incrementAndGet();
+            throw e;
+        }
+        catch (PersistenceException e) {
+            replica.failures.incrementAndGet();
+        }
+        finally {
+            replica.inFlight.decrementAndGet();
+        }
+
+        failovers.incrementAndGet();
+        return primary.get();
+    }
+
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    public JpaJsonSearchBalancingPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getFailovers() {
+        return failovers.get();
+    }
+}
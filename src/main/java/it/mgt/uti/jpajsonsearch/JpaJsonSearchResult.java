@@ -6,14 +6,24 @@ public class JpaJsonSearchResult<T> {
 
     private final List<T> values;
     private final Number count;
+    private final boolean countExact;
+    private final Boolean hasNext;
     private final int page;
     private final int pageSize;
+    private final String next;
 
     public JpaJsonSearchResult(List<T> values, Number count, int page, int pageSize) {
+        this(values, count, true, null, page, pageSize, null);
+    }
+
+    public JpaJsonSearchResult(List<T> values, Number count, boolean countExact, Boolean hasNext, int page, int pageSize, String next) {
         this.values = values;
         this.count = count;
+        this.countExact = countExact;
+        this.hasNext = hasNext;
         this.page = page;
         this.pageSize = pageSize;
+        this.next = next;
     }
 
     public List<T> getValues() {
@@ -24,6 +34,14 @@ public class JpaJsonSearchResult<T> {
         return count;
     }
 
+    public boolean isCountExact() {
+        return countExact;
+    }
+
+    public Boolean getHasNext() {
+        return hasNext;
+    }
+
     public int getPage() {
         return page;
     }
@@ -32,11 +50,18 @@ public class JpaJsonSearchResult<T> {
         return pageSize;
     }
 
+    public String getNext() {
+        return next;
+    }
+
     public int getPages() {
+        if (count == null)
+            return -1;
+
         return (int) Math.round(Math.ceil(count.doubleValue() / pageSize));
     }
 
     public <V> JpaJsonSearchResult<V> transform(JpaJsonSearchResultTransformer<T, V> transformer) {
-        return new JpaJsonSearchResult<>(transformer.transform(values), count, page, pageSize);
+        return new JpaJsonSearchResult<>(transformer.transform(values), count, countExact, hasNext, page, pageSize, next);
     }
 }
@@ -0,0 +1,198 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe, size and time bounded LRU cache of search results, keyed by entity type, search shape and bound
+ * values. Counts can live longer than pages. Pages of entities are loaded on a dedicated entity manager, closed before
+ * they are cached, so cached entities are detached and shared between searches: treat them as read only. Without an
+ * entity manager factory only counts and projections are cached.
+ */
+public class JpaJsonSearchResultCache {
+
+    private final static Set<JpaJsonSearchResultCache> registry = new CopyOnWriteArraySet<>();
+
+    private static class CachedResult {
+
+        final Class<?> type;
+        final Object value;
+        final int rows;
+        final long expiresAt;
+
+        CachedResult(Class<?> type, Object value, int rows, long expiresAt) {
+            this.type = type;
+            this.value = value;
+            this.rows = rows;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final long countTtlMillis;
+    private final Map<List<Object>, CachedResult> entries;
+    private long rows;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public JpaJsonSearchResultCache(int maxSize, long ttlMillis) {
+        this(maxSize, ttlMillis, ttlMillis);
+    }
+
+    public JpaJsonSearchResultCache(int maxSize, long ttlMillis, long countTtlMillis) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Expected max size to be positive");
+
+        if (ttlMillis <= 0 || countTtlMillis <= 0)
+            throw new IllegalArgumentException("Expected TTL to be positive");
+
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.countTtlMillis = countTtlMillis;
+        this.entries = new LinkedHashMap<List<Object>, CachedResult>(16, 0.75f, true) {
+
+            private final static long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, CachedResult> eldest) {
+                if (size() <= JpaJsonSearchResultCache.this.maxSize)
+                    return false;
+
+                rows -= eldest.getValue().rows;
+                evictions.incrementAndGet();
+                return true;
+            }
+
+        };
+    }
+
+    Object get(List<Object> key) {
+        CachedResult cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+
+            if (cached != null && cached.expiresAt <= System.currentTimeMillis()) {
+                entries.remove(key);
+                rows -= cached.rows;
+                expirations.incrementAndGet();
+                cached = null;
+            }
+        }
+
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return cached.value;
+    }
+
+    void put(Class<?> type, List<Object> key, Object value, int rows, boolean count) {
+        long expiresAt = System.currentTimeMillis() + (count ? countTtlMillis : ttlMillis);
+
+        synchronized (entries) {
+            CachedResult previous = entries.put(key, new CachedResult(type, value, rows, expiresAt));
+            if (previous != null)
+                this.rows -= previous.rows;
+
+            this.rows += rows;
+        }
+    }
+
+    public void invalidate(Class<?> type) {
+        synchronized (entries) {
+            for (Iterator<CachedResult> it = entries.values().iterator(); it.hasNext(); ) {
+                CachedResult cached = it.next();
+
+                // Writes to a subclass affect searches on any of its superclasses
+                if (cached.type.isAssignableFrom(type)) {
+                    rows -= cached.rows;
+                    invalidations.incrementAndGet();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            rows = 0;
+        }
+    }
+
+    public JpaJsonSearchResultCache register() {
+        registry.add(this);
+        return this;
+    }
+
+    public void unregister() {
+        registry.remove(this);
+    }
+
+    public static void invalidateRegistered(Class<?> type) {
+        for (JpaJsonSearchResultCache cache : registry)
+            cache.invalidate(type);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public long getCountTtlMillis() {
+        return countTtlMillis;
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getRows() {
+        synchronized (entries) {
+            return rows;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+}
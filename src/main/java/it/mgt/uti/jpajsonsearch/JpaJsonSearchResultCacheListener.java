@@ -0,0 +1,23 @@
+package it.mgt.uti.jpajsonsearch;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * JPA entity listener evicting the cached results of the written entity type from every registered result cache.
+ * Declare it with {@code @EntityListeners} or as a default listener in orm.xml.
+ * <p>
+ * Callbacks run when the write is flushed, before its transaction commits: a search running in between still reads
+ * the previous rows and may cache them, so cached results can be stale for up to the TTL of the cache. A rolled back
+ * write only causes an unneeded eviction.
+ */
+public class JpaJsonSearchResultCacheListener {
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    public void onWrite(Object entity) {
+        JpaJsonSearchResultCache.invalidateRegistered(entity.getClass());
+    }
+}
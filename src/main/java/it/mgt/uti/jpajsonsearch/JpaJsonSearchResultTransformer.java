@@ -1,9 +1,21 @@
 package it.mgt.uti.jpajsonsearch;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 
 public interface JpaJsonSearchResultTransformer<T, V> {
 
     List<V> transform(List<T> result);
 
+    static <T, V> JpaJsonSearchResultTransformer<T, V> perElement(Function<? super T, ? extends V> function) {
+        return result -> {
+            List<V> transformed = new ArrayList<>(result.size());
+            for (T e : result)
+                transformed.add(function.apply(e));
+
+            return transformed;
+        };
+    }
+
 }
@@ -0,0 +1,84 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable description of the searchable parameters of an entity type, with their value converters precomputed.
+ * Build it once and share it between threads and requests.
+ */
+public class JpaJsonSearchSchema<T> {
+
+    public static class Builder<T> {
+
+        private final Class<T> type;
+        private String alias;
+        private String fromJpql;
+        private final Map<String, JpaJsonSearchParameter> parametersMap = new HashMap<>();
+
+        private Builder(Class<T> type) {
+            this.type = type;
+        }
+
+        public Builder<T> alias(String alias) {
+            this.alias = alias;
+            return this;
+        }
+
+        public Builder<T> from(String jpql) {
+            this.fromJpql = jpql;
+            return this;
+        }
+
+        public Builder<T> addParameter(String name, String path, Class<?> type) {
+            parametersMap.put(name, new JpaJsonSearchParameter(path, type));
+            return this;
+        }
+
+        public Builder<T> addCollectionParameter(String name, String path, String elementAlias) {
+            parametersMap.put(name, new JpaJsonSearchParameter(path, elementAlias));
+            return this;
+        }
+
+        public JpaJsonSearchSchema<T> build() {
+            return new JpaJsonSearchSchema<>(type, alias, fromJpql, new HashMap<>(parametersMap));
+        }
+    }
+
+    private final Class<T> type;
+    private final String alias;
+    private final String fromJpql;
+    private final Map<String, JpaJsonSearchParameter> parametersMap;
+
+    private JpaJsonSearchSchema(Class<T> type, String alias, String fromJpql, Map<String, JpaJsonSearchParameter> parametersMap) {
+        this.type = type;
+        this.alias = alias;
+        this.fromJpql = fromJpql;
+        this.parametersMap = Collections.unmodifiableMap(parametersMap);
+    }
+
+    public static <T> Builder<T> builder(Class<T> type) {
+        return new Builder<>(type);
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public String getFrom() {
+        return fromJpql;
+    }
+
+    public boolean hasParameter(String name) {
+        return parametersMap.containsKey(name);
+    }
+
+    Map<String, JpaJsonSearchParameter> getParametersMap() {
+        return parametersMap;
+    }
+}
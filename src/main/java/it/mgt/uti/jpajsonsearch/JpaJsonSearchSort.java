@@ -1,22 +1,28 @@
 package it.mgt.uti.jpajsonsearch;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 
-import java.util.Map;
+import java.io.IOException;
 
 public class JpaJsonSearchSort {
 
     enum Order {
 
-        ASC("ASC", "ASC"),
-        DESC("DESC", "DESC");
+        ASC("ASC", "ASC", " > ", "MIN("),
+        DESC("DESC", "DESC", " < ", "MAX(");
 
         final String placeholder;
         final String jpql;
+        final String keysetJpql;
+        final String aggregateJpql;
 
-        Order(String placeholder, String jpql) {
+        Order(String placeholder, String jpql, String keysetJpql, String aggregateJpql) {
             this.placeholder = placeholder;
             this.jpql = jpql;
+            this.keysetJpql = keysetJpql;
+            this.aggregateJpql = aggregateJpql;
         }
 
         static Order parse(String placeholder) {
@@ -39,28 +45,69 @@ public class JpaJsonSearchSort {
         this.search = search;
     }
 
-    JpaJsonSearchJpqlAndParams buildJpql() {
-        return new JpaJsonSearchJpqlAndParams(parameter.path)
+    void buildJpql(JpaJsonSearchJpqlAndParams jpql) {
+        jpql.append(parameter.path)
                 .append(JpaJsonSearch.SPACE)
                 .append(order.jpql);
     }
 
-    JpaJsonSearchSort parse(JsonNode jsonNode) {
-        if (jsonNode.size() != 1)
+    // The value a root sorts by among those of its joined rows, the first one in the requested order
+    void buildAggregateJpql(JpaJsonSearchJpqlAndParams jpql) {
+        jpql.append(order.aggregateJpql)
+                .append(parameter.path)
+                .append(JpaJsonSearch.CLOSE_PARENTHESIS);
+    }
+
+    void buildAggregateOrderJpql(JpaJsonSearchJpqlAndParams jpql) {
+        buildAggregateJpql(jpql);
+        jpql.append(JpaJsonSearch.SPACE)
+                .append(order.jpql);
+    }
+
+    void buildShape(StringBuilder shape) {
+        shape.append(parameter.path)
+                .append(JpaJsonSearch.SPACE)
+                .append(order.jpql)
+                .append(JpaJsonSearch.SEMICOLON);
+    }
+
+    JpaJsonSearchSort parse(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT || parser.nextToken() != JsonToken.FIELD_NAME)
             throw new JpaJsonSearchException("Expected condition filter element to have a single child");
 
-        Map.Entry<String, JsonNode> child = jsonNode.fields().next();
+        String name = parser.currentName();
 
-        parameter = search.parametersMap.get(child.getKey());
+        parameter = search.parametersMap.get(name);
         if (parameter == null)
-            throw new JpaJsonSearchException("Parameter " + child.getKey() + " not found");
+            throw new JpaJsonSearchException("Parameter " + name + " not found");
+
+        search.getLimits().checkSort(name);
 
-        order = Order.parse(child.getValue().textValue());
+        parser.nextToken();
+        order = Order.parse(parser.getText());
+
+        if (parser.nextToken() != JsonToken.END_OBJECT)
+            throw new JpaJsonSearchException("Expected condition filter element to have a single child");
 
         return this;
     }
 
+    JpaJsonSearchParameter getParameter() {
+        return parameter;
+    }
+
+    Order getOrder() {
+        return order;
+    }
+
     public static JpaJsonSearchSort buildParse(JpaJsonSearch<?> search, JsonNode jsonNode) {
-        return new JpaJsonSearchSort(search).parse(jsonNode);
+        try {
+            JsonParser parser = jsonNode.traverse();
+            parser.nextToken();
+            return new JpaJsonSearchSort(search).parse(parser);
+        }
+        catch (IOException e) {
+            throw new JpaJsonSearchException(e);
+        }
     }
 }
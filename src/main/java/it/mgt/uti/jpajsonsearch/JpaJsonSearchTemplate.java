@@ -0,0 +1,54 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.util.*;
+
+/**
+ * Compiled form of a search: the JPQL generated for a given search shape (filter structure, operators, sorts,
+ * distinct, alias and from, fetch plan and execution profile) together with the ordered parameter slots to bind.
+ * Searches with the same shape are still parsed and normalized, since the normalized tree decides the shape, but
+ * skip the JPQL generation and only extract their values to bind them to the slots.
+ */
+public class JpaJsonSearchTemplate {
+
+    private final String shape;
+    private final String jpql;
+    private final String countJpql;
+    private final List<String> parameterNames;
+    private final List<String> countParameterNames;
+
+    JpaJsonSearchTemplate(String shape, JpaJsonSearchJpqlAndParams jpqlAndParams, JpaJsonSearchJpqlAndParams countJpqlAndParams) {
+        this.shape = shape;
+        this.jpql = jpqlAndParams.jpql.toString();
+        this.countJpql = countJpqlAndParams.jpql.toString();
+        this.parameterNames = Collections.unmodifiableList(new ArrayList<>(jpqlAndParams.names));
+        this.countParameterNames = Collections.unmodifiableList(new ArrayList<>(countJpqlAndParams.names));
+    }
+
+    public String getShape() {
+        return shape;
+    }
+
+    public String getJpql() {
+        return jpql;
+    }
+
+    public String getCountJpql() {
+        return countJpql;
+    }
+
+    public List<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    public List<String> getCountParameterNames() {
+        return countParameterNames;
+    }
+
+    List<Object> bind(List<Object> values, boolean count) {
+        if (values.size() != parameterNames.size())
+            throw new JpaJsonSearchException("Expected " + parameterNames.size() + " values to bind, got " + values.size());
+
+        // Count parameters are a prefix of the find ones, as the count query only leaves out the trailing keyset predicate
+        return count ? values.subList(0, countParameterNames.size()) : values;
+    }
+}
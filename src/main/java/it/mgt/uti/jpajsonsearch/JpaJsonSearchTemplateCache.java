@@ -0,0 +1,91 @@
+package it.mgt.uti.jpajsonsearch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe, size bounded LRU cache of compiled templates, keyed by entity type and search shape.
+ */
+public class JpaJsonSearchTemplateCache {
+
+    private final int maxSize;
+    private final Map<String, JpaJsonSearchTemplate> templates;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public JpaJsonSearchTemplateCache(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Expected max size to be positive");
+
+        this.maxSize = maxSize;
+        this.templates = new LinkedHashMap<String, JpaJsonSearchTemplate>(16, 0.75f, true) {
+
+            private final static long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JpaJsonSearchTemplate> eldest) {
+                if (size() <= JpaJsonSearchTemplateCache.this.maxSize)
+                    return false;
+
+                evictions.incrementAndGet();
+                return true;
+            }
+
+        };
+    }
+
+    private static String buildKey(Class<?> type, String shape) {
+        return type.getName() + JpaJsonSearch.SEMICOLON + shape;
+    }
+
+    JpaJsonSearchTemplate get(Class<?> type, String shape) {
+        JpaJsonSearchTemplate template;
+        synchronized (templates) {
+            template = templates.get(buildKey(type, shape));
+        }
+
+        if (template == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+
+        return template;
+    }
+
+    void put(Class<?> type, JpaJsonSearchTemplate template) {
+        synchronized (templates) {
+            templates.put(buildKey(type, template.getShape()), template);
+        }
+    }
+
+    public void clear() {
+        synchronized (templates) {
+            templates.clear();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getSize() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
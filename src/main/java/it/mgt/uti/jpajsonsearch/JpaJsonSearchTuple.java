@@ -0,0 +1,95 @@
+package it.mgt.uti.jpajsonsearch;
+
+import javax.persistence.Tuple;
+import javax.persistence.TupleElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Projected tuple exposing the selected parameter names as aliases. Selections are aliased with generated names in
+ * the JPQL, since parameter names may be reserved words.
+ */
+class JpaJsonSearchTuple implements Tuple {
+
+    private static class Element<X> implements TupleElement<X> {
+
+        private final Class<? extends X> javaType;
+        private final String alias;
+
+        private Element(Class<? extends X> javaType, String alias) {
+            this.javaType = javaType;
+            this.alias = alias;
+        }
+
+        @Override
+        public Class<? extends X> getJavaType() {
+            return javaType;
+        }
+
+        @Override
+        public String getAlias() {
+            return alias;
+        }
+    }
+
+    private final Tuple tuple;
+    private final List<String> names;
+
+    JpaJsonSearchTuple(Tuple tuple, List<String> names) {
+        this.tuple = tuple;
+        this.names = names;
+    }
+
+    private int indexOf(String alias) {
+        int i = names.indexOf(alias);
+        if (i < 0)
+            throw new IllegalArgumentException("Unknown tuple alias " + alias);
+
+        return i;
+    }
+
+    @Override
+    public <X> X get(TupleElement<X> tupleElement) {
+        return get(indexOf(tupleElement.getAlias()), tupleElement.getJavaType());
+    }
+
+    @Override
+    public <X> X get(String alias, Class<X> type) {
+        return tuple.get(indexOf(alias), type);
+    }
+
+    @Override
+    public Object get(String alias) {
+        return tuple.get(indexOf(alias));
+    }
+
+    @Override
+    public <X> X get(int i, Class<X> type) {
+        return tuple.get(i, type);
+    }
+
+    @Override
+    public Object get(int i) {
+        return tuple.get(i);
+    }
+
+    @Override
+    public Object[] toArray() {
+        return tuple.toArray();
+    }
+
+    @Override
+    public List<TupleElement<?>> getElements() {
+        List<TupleElement<?>> selected = tuple.getElements();
+
+        List<TupleElement<?>> elements = new ArrayList<>(selected.size());
+        for (int i = 0; i < selected.size(); ++i)
+            elements.add(rename(selected.get(i), names.get(i)));
+
+        return elements;
+    }
+
+    private static <X> TupleElement<X> rename(TupleElement<X> element, String alias) {
+        return new Element<>(element.getJavaType(), alias);
+    }
+}
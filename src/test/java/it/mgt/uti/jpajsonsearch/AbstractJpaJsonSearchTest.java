@@ -0,0 +1,49 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Base of the tests searching the {@link TestData} dataset, populated once in an embedded HSQLDB database shared by
+ * every test class. Tests must leave the dataset unchanged; each gets its own entity manager.
+ */
+public abstract class AbstractJpaJsonSearchTest {
+
+    protected static EntityManagerFactory emf;
+
+    protected EntityManager em;
+
+    @BeforeClass
+    public static void setUpDatabase() {
+        if (emf != null)
+            return;
+
+        emf = TestData.populate("search");
+        Runtime.getRuntime().addShutdownHook(new Thread(emf::close));
+    }
+
+    @Before
+    public void setUpEntityManager() {
+        em = emf.createEntityManager();
+    }
+
+    @After
+    public void tearDownEntityManager() {
+        if (em.getTransaction().isActive())
+            em.getTransaction().rollback();
+
+        em.close();
+    }
+
+    protected JpaJsonSearch<Person> search() {
+        return TestData.search(em);
+    }
+
+    protected JpaJsonSearch<Person> search(String json) {
+        return search().parse(TestData.json(json));
+    }
+}
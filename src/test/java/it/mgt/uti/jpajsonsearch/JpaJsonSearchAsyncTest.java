@@ -0,0 +1,58 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchAsyncTest extends AbstractJpaJsonSearchTest {
+
+    @Test
+    public void asyncResultMatchesResult() throws Exception {
+        String json = "{ 'filter': [ { 'name': { '$neq': 'John' } } ], 'page': 1, 'pageSize': 5, 'sort': [ { 'sequence': 'ASC' } ] }";
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            JpaJsonSearchResult<Person> async = search()
+                    .entityManagerFactory(emf)
+                    .parse(TestData.json(json))
+                    .resultAsync(executor)
+                    .get(10, TimeUnit.SECONDS);
+            JpaJsonSearchResult<Person> sync = search(json).result();
+
+            assertEquals(Arrays.asList(7, 9, 10, 11, 13), TestData.sequences(async.getValues()));
+            assertEquals(TestData.ids(sync.getValues()), TestData.ids(async.getValues()));
+            assertEquals(15L, async.getCount().longValue());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncResultNeedsFactory() {
+        CompletableFuture<JpaJsonSearchResult<Person>> future = search().resultAsync(Runnable::run);
+
+        assertTrue(future.isCompletedExceptionally());
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertTrue(e.getCause() instanceof JpaJsonSearchException);
+    }
+
+    @Test
+    public void preparationErrorsFailTheFuture() {
+        CompletableFuture<JpaJsonSearchResult<Person>> future = search()
+                .entityManagerFactory(emf)
+                .parse(TestData.json("{ 'after': null, 'pageSize': 3, 'sort': [ { 'nickname': 'ASC' } ] }"))
+                .resultAsync(Runnable::run);
+
+        assertTrue(future.isCompletedExceptionally());
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertTrue(e.getCause() instanceof JpaJsonSearchException);
+    }
+}
@@ -0,0 +1,160 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchCoalescerTest extends AbstractJpaJsonSearchTest {
+
+    private final static List<Object> KEY = Collections.singletonList("key");
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUpExecutor() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDownExecutor() {
+        executor.shutdownNow();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS))
+                throw new IllegalStateException("Latch not released");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Waits for the follower to join the leader's execution
+    private static void awaitCoalesced(JpaJsonSearchCoalescer coalescer) throws InterruptedException {
+        for (int i = 0; i < 1000 && coalescer.getCoalesced() == 0; ++i)
+            Thread.sleep(10);
+
+        assertEquals(1, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void followersShareTheLeaderResult() throws Exception {
+        JpaJsonSearchCoalescer coalescer = new JpaJsonSearchCoalescer();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<Object> leader = executor.submit(() -> coalescer.execute(KEY, () -> {
+            started.countDown();
+            await(release);
+            return "leader";
+        }));
+
+        await(started);
+        Future<Object> follower = executor.submit(() -> coalescer.execute(KEY, () -> "follower"));
+        awaitCoalesced(coalescer);
+        release.countDown();
+
+        assertEquals("leader", leader.get(10, TimeUnit.SECONDS));
+        assertEquals("leader", follower.get(10, TimeUnit.SECONDS));
+        assertEquals(1, coalescer.getExecutions());
+        assertEquals(0, coalescer.getInFlight());
+    }
+
+    @Test
+    public void leaderErrorsReachFollowers() throws Exception {
+        JpaJsonSearchCoalescer coalescer = new JpaJsonSearchCoalescer();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<Object> leader = executor.submit(() -> coalescer.execute(KEY, () -> {
+            started.countDown();
+            await(release);
+            throw new Error("leader failed");
+        }));
+
+        await(started);
+        Future<Object> follower = executor.submit(() -> coalescer.execute(KEY, () -> "follower"));
+        awaitCoalesced(coalescer);
+        release.countDown();
+
+        try {
+            leader.get(10, TimeUnit.SECONDS);
+            fail("Expected the leader to fail");
+        }
+        catch (ExecutionException e) {
+            assertEquals(Error.class, e.getCause().getClass());
+        }
+
+        try {
+            follower.get(10, TimeUnit.SECONDS);
+            fail("Expected the follower to fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof JpaJsonSearchException);
+            assertEquals(Error.class, e.getCause().getCause().getClass());
+        }
+
+        assertEquals(0, coalescer.getInFlight());
+    }
+
+    @Test
+    public void followersStopWaitingAfterTheBound() throws Exception {
+        JpaJsonSearchCoalescer coalescer = new JpaJsonSearchCoalescer(50);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<Object> leader = executor.submit(() -> coalescer.execute(KEY, () -> {
+            started.countDown();
+            await(release);
+            return "leader";
+        }));
+
+        await(started);
+        try {
+            coalescer.execute(KEY, () -> "follower");
+            fail("Expected the follower to time out");
+        }
+        catch (JpaJsonSearchException e) {
+            assertEquals(1, coalescer.getCoalesced());
+        }
+        finally {
+            release.countDown();
+        }
+
+        assertEquals("leader", leader.get(10, TimeUnit.SECONDS));
+        assertEquals(0, coalescer.getInFlight());
+    }
+
+    @Test
+    public void searchesRunOnTheirOwnEntityManager() {
+        JpaJsonSearchCoalescer coalescer = new JpaJsonSearchCoalescer(5000);
+
+        JpaJsonSearchResult<Person> result = search()
+                .entityManagerFactory(emf)
+                .coalescer(coalescer)
+                .parse(TestData.json("{ 'filter': [ { 'name': { '$eq': 'Jane' } } ], 'page': 0, 'pageSize': 3, 'sort': [ { 'sequence': 'ASC' } ] }"))
+                .result();
+
+        assertEquals(Arrays.asList(1, 5, 9), TestData.sequences(result.getValues()));
+        assertEquals(5L, result.getCount().longValue());
+        assertEquals(2, coalescer.getExecutions());
+        assertEquals(0, coalescer.getInFlight());
+
+        for (Person person : result.getValues())
+            assertFalse(em.contains(person));
+    }
+}
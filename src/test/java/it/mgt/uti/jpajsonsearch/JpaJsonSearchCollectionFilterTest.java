@@ -0,0 +1,64 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Person {@code i} has {@code i % 3} pets: none, a "Rex" aged {@code i}, or a "Rex" and a "Fido" aged {@code i + 1}.
+ */
+public class JpaJsonSearchCollectionFilterTest extends AbstractJpaJsonSearchTest {
+
+    private long count(String pets) {
+        return search()
+                .parse(TestData.json("{ 'filter': [ { 'pets': " + pets + " } ] }"))
+                .count()
+                .longValue();
+    }
+
+    @Test
+    public void any() {
+        assertEquals(6, count("{ '$any': [ { 'petName': { '$eq': 'Fido' } } ] }"));
+        assertEquals(7, count("{ '$any': [ { 'petName': { '$eq': 'Rex' } }, { 'petAge': { '$gte': 10 } } ] }"));
+    }
+
+    @Test
+    public void all() {
+        // Persons without pets satisfy $all vacuously
+        assertEquals(14, count("{ '$all': [ { 'petName': { '$eq': 'Rex' } } ] }"));
+        assertEquals(20, count("{ '$all': [] }"));
+    }
+
+    @Test
+    public void none() {
+        assertEquals(14, count("{ '$none': [ { 'petName': { '$eq': 'Fido' } } ] }"));
+    }
+
+    @Test
+    public void emptyFiltersTestForEmptiness() {
+        assertEquals(13, count("{ '$any': [] }"));
+        assertEquals(7, count("{ '$none': [] }"));
+    }
+
+    @Test
+    public void rootIsFoundOncePerMatch() {
+        JpaJsonSearchResult<Person> result = search()
+                .parse(TestData.json("{ 'filter': [ { 'pets': { '$any': [ { 'petAge': { '$gte': 0 } } ] } }, { 'sequence': { '$lt': 6 } } ], 'page': 0, 'pageSize': 10, 'sort': [ { 'sequence': 'ASC' } ] }"))
+                .result();
+
+        assertEquals(Arrays.asList(1, 2, 4, 5), TestData.sequences(result.getValues()));
+        assertEquals(4L, result.getCount().longValue());
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void valueOperatorsAreRejected() {
+        search().parse(TestData.json("{ 'filter': [ { 'pets': { '$eq': 1 } } ] }"));
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void nullOperatorsAreRejected() {
+        search().parse(TestData.json("{ 'filter': [ { 'pets': '$null' } ] }"));
+    }
+}
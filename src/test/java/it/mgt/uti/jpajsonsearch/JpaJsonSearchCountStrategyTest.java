@@ -0,0 +1,87 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchCountStrategyTest extends AbstractJpaJsonSearchTest {
+
+    private JpaJsonSearchResult<Person> result(String count, int page) {
+        return search()
+                .parse(TestData.json("{ 'count': " + count + ", 'page': " + page + ", 'pageSize': 6, 'sort': [ { 'sequence': 'ASC' } ] }"))
+                .result();
+    }
+
+    @Test
+    public void exactCount() {
+        JpaJsonSearchResult<Person> result = result("'EXACT'", 1);
+
+        assertEquals(Arrays.asList(6, 7, 8, 9, 10, 11), TestData.sequences(result.getValues()));
+        assertEquals(20L, result.getCount().longValue());
+        assertTrue(result.isCountExact());
+        assertTrue(result.getHasNext());
+        assertEquals(4, result.getPages());
+    }
+
+    @Test
+    public void noCount() {
+        JpaJsonSearchResult<Person> result = result("'NONE'", 0);
+
+        assertEquals(6, result.getValues().size());
+        assertNull(result.getCount());
+        assertFalse(result.isCountExact());
+        assertEquals(-1, result.getPages());
+    }
+
+    @Test
+    public void hasNextIsLowerBoundBeforeTheEnd() {
+        JpaJsonSearchResult<Person> result = result("'HAS_NEXT'", 1);
+
+        assertEquals(Arrays.asList(6, 7, 8, 9, 10, 11), TestData.sequences(result.getValues()));
+        assertTrue(result.getHasNext());
+        assertFalse(result.isCountExact());
+        assertEquals(13L, result.getCount().longValue());
+    }
+
+    @Test
+    public void hasNextIsExactOnTheLastPage() {
+        JpaJsonSearchResult<Person> result = result("'HAS_NEXT'", 3);
+
+        assertEquals(Arrays.asList(18, 19), TestData.sequences(result.getValues()));
+        assertFalse(result.getHasNext());
+        assertTrue(result.isCountExact());
+        assertEquals(20L, result.getCount().longValue());
+    }
+
+    @Test
+    public void hasNextPastTheEndHasNoCount() {
+        JpaJsonSearchResult<Person> result = result("'HAS_NEXT'", 5);
+
+        assertTrue(result.getValues().isEmpty());
+        assertFalse(result.getHasNext());
+        assertNull(result.getCount());
+        assertFalse(result.isCountExact());
+    }
+
+    @Test
+    public void cappedCountIsLowerBoundAboveTheCap() {
+        JpaJsonSearchResult<Person> result = result("{ 'CAPPED': 10 }", 0);
+
+        assertEquals(10L, result.getCount().longValue());
+        assertFalse(result.isCountExact());
+
+        assertEquals(10L, search()
+                .countStrategy(JpaJsonSearchCountStrategy.capped(10))
+                .count().longValue());
+    }
+
+    @Test
+    public void cappedCountIsExactWithinTheCap() {
+        JpaJsonSearchResult<Person> result = result("{ 'CAPPED': 50 }", 0);
+
+        assertEquals(20L, result.getCount().longValue());
+        assertTrue(result.isCountExact());
+    }
+}
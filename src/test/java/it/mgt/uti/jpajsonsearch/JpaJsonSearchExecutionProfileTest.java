@@ -0,0 +1,31 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchExecutionProfileTest extends AbstractJpaJsonSearchTest {
+
+    @Test
+    public void readOnlyEntitiesAreNotFlushed() {
+        em.getTransaction().begin();
+        List<Person> found = search()
+                .executionProfile(JpaJsonSearchExecutionProfile.READ_ONLY)
+                .parse(TestData.json("{ 'filter': [ { 'sequence': { '$eq': 3 } } ] }"))
+                .find();
+        found.get(0).setNickname("Changed");
+        em.getTransaction().commit();
+
+        EntityManager other = emf.createEntityManager();
+        try {
+            assertEquals("Nick 3", other.createQuery("SELECT p.nickname FROM Person p WHERE p.sequence = 3", String.class)
+                    .getSingleResult());
+        }
+        finally {
+            other.close();
+        }
+    }
+}
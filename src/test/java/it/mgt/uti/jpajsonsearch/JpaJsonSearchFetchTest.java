@@ -0,0 +1,79 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.PersistenceUnitUtil;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchFetchTest extends AbstractJpaJsonSearchTest {
+
+    private PersistenceUnitUtil util;
+
+    @Before
+    public void setUpUtil() {
+        util = emf.getPersistenceUnitUtil();
+    }
+
+    private void assertFetched(List<Person> persons) {
+        for (Person person : persons) {
+            assertTrue(util.isLoaded(person, "pets"));
+            assertEquals(person.getSequence() % 3, person.getPets().size());
+        }
+    }
+
+    @Test
+    public void unpagedCollectionFetchReturnsEachRootOnce() {
+        List<Person> found = search()
+                .parse(TestData.json("{ 'fetch': [ 'pets' ], 'sort': [ { 'sequence': 'ASC' } ] }"))
+                .find();
+
+        assertEquals(TestData.PERSONS, found.size());
+        assertEquals(TestData.PERSONS, found.stream().distinct().count());
+        assertFetched(found);
+    }
+
+    @Test
+    public void pagedCollectionFetchSelectsIdsFirst() {
+        JpaJsonSearchResult<Person> result = search()
+                .parse(TestData.json("{ 'fetch': [ 'pets', 'city' ], 'filter': [ { 'sequence': { '$gte': 2 } } ], 'page': 1, 'pageSize': 4, 'sort': [ { 'sequence': 'ASC' } ] }"))
+                .result();
+
+        assertEquals(Arrays.asList(6, 7, 8, 9), TestData.sequences(result.getValues()));
+        assertEquals(18L, result.getCount().longValue());
+        assertFetched(result.getValues());
+        for (Person person : result.getValues())
+            assertTrue(util.isLoaded(person, "city"));
+    }
+
+    @Test
+    public void unfetchedAssociationsStayLazy() {
+        List<Person> found = search()
+                .parse(TestData.json("{ 'filter': [ { 'sequence': { '$lt': 3 } } ] }"))
+                .find();
+
+        assertEquals(3, found.size());
+        for (Person person : found)
+            assertFalse(util.isLoaded(person, "pets"));
+    }
+
+    @Test
+    public void singleResultIgnoresFetchedRows() {
+        Person found = search()
+                .parse(TestData.json("{ 'fetch': [ 'pets' ], 'filter': [ { 'sequence': { '$eq': 5 } } ] }"))
+                .findSingle();
+
+        assertEquals(5, found.getSequence().intValue());
+        assertEquals(2, found.getPets().size());
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void singleResultRejectsSeveralRoots() {
+        search()
+                .parse(TestData.json("{ 'fetch': [ 'pets' ], 'filter': [ { 'sequence': { '$lt': 6 } } ] }"))
+                .findSingle();
+    }
+}
@@ -0,0 +1,52 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchHistogramListenerTest extends AbstractJpaJsonSearchTest {
+
+    private JpaJsonSearch<Person> search(JpaJsonSearchListener listener, String json) {
+        return search()
+                .listeners(Collections.singletonList(listener))
+                .parse(TestData.json(json));
+    }
+
+    @Test
+    public void phasesAreRecordedPerShape() {
+        JpaJsonSearchHistogramListener listener = new JpaJsonSearchHistogramListener();
+
+        String json = "{ 'filter': [ { 'name': { '$eq': 'John' } } ], 'page': 0, 'pageSize': 3 }";
+        search(listener, json).result();
+        search(listener, json.replace("John", "Mary")).result();
+
+        String shape = search().parse(TestData.json(json)).compile().getShape();
+
+        JpaJsonSearchHistogramListener.Histogram find = listener.getHistogram(Person.class, shape, JpaJsonSearchEvent.Phase.FIND);
+        assertEquals(2, find.getCount());
+        assertEquals(6, find.getRows());
+
+        JpaJsonSearchHistogramListener.Histogram count = listener.getHistogram(Person.class, shape, JpaJsonSearchEvent.Phase.COUNT);
+        assertEquals(2, count.getCount());
+
+        assertNotNull(listener.getHistogram(Person.class, shape, JpaJsonSearchEvent.Phase.PARSE));
+    }
+
+    @Test
+    public void leastRecentlyUsedShapesAreEvicted() {
+        // A find records its parse, build and find phases
+        JpaJsonSearchHistogramListener listener = new JpaJsonSearchHistogramListener(3);
+
+        search(listener, "{ 'filter': [ { 'name': { '$eq': 'John' } } ] }").find();
+        search(listener, "{ 'filter': [ { 'surname': { '$eq': 'Smith' } } ] }").find();
+
+        String shape = search().parse(TestData.json("{ 'filter': [ { 'surname': { '$eq': 'Smith' } } ] }")).compile().getShape();
+
+        assertEquals(3, listener.getHistograms().size());
+        assertEquals(3, listener.getEvictions());
+        for (JpaJsonSearchHistogramListener.Key key : listener.getHistograms().keySet())
+            assertEquals(shape, key.getShape());
+    }
+}
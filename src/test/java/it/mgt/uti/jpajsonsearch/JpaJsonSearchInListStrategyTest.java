@@ -0,0 +1,75 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchInListStrategyTest extends AbstractJpaJsonSearchTest {
+
+    private List<Long> ids;
+
+    @Before
+    public void setUpIds() {
+        ids = em.createQuery("SELECT p.id FROM Person p WHERE p.sequence < 10 ORDER BY p.sequence", Long.class)
+                .getResultList();
+    }
+
+    private JpaJsonSearch<Person> search(String operator, JpaJsonSearchInListStrategy inListStrategy) {
+        return search()
+                .inListStrategy(inListStrategy)
+                .parse(TestData.json("{ 'filter': [ { 'id': { '" + operator + "': " + ids + " } } ], 'sort': [ { 'sequence': 'ASC' } ] }"));
+    }
+
+    private static int occurrences(String jpql, String text) {
+        int count = 0;
+        for (int i = jpql.indexOf(text); i >= 0; i = jpql.indexOf(text, i + text.length()))
+            ++count;
+
+        return count;
+    }
+
+    @Test
+    public void everyStrategyFindsTheSameRows() {
+        List<Integer> expected = Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+
+        for (JpaJsonSearchInListStrategy inListStrategy : Arrays.asList(JpaJsonSearchInListStrategy.NONE,
+                JpaJsonSearchInListStrategy.PADDED, JpaJsonSearchInListStrategy.chunked(3),
+                JpaJsonSearchInListStrategy.paddedChunked(4))) {
+            assertEquals(expected, TestData.sequences(search("$in", inListStrategy).find()));
+            assertEquals(10L, search("$in", inListStrategy).count().longValue());
+        }
+    }
+
+    @Test
+    public void notInChunksAreAnded() {
+        List<Person> found = search("$nin", JpaJsonSearchInListStrategy.chunked(3)).find();
+
+        assertEquals(Arrays.asList(10, 11, 12, 13, 14, 15, 16, 17, 18, 19), TestData.sequences(found));
+    }
+
+    @Test
+    public void chunksSplitLongLists() {
+        String jpql = search("$in", JpaJsonSearchInListStrategy.chunked(3)).compile().getJpql();
+
+        assertEquals(4, occurrences(jpql, " IN "));
+        assertEquals(3, occurrences(jpql, " OR "));
+    }
+
+    @Test
+    public void paddingKeepsOneListPerSizeClass() {
+        String jpql = search("$in", JpaJsonSearchInListStrategy.PADDED).compile().getJpql();
+
+        assertEquals(1, occurrences(jpql, " IN "));
+
+        List<Person> found = search()
+                .inListStrategy(JpaJsonSearchInListStrategy.PADDED)
+                .parse(TestData.json("{ 'filter': [ { 'id': { '$in': " + ids.subList(0, 3) + " } } ] }"))
+                .find();
+
+        assertEquals(3, found.size());
+    }
+}
@@ -0,0 +1,91 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchKeysetTest extends AbstractJpaJsonSearchTest {
+
+    private static String after(String cursor) {
+        return cursor == null ? "null" : "'" + cursor + "'";
+    }
+
+    // Birth dates are shared by pairs of persons, so pages also cut between ties broken by id
+    @Test
+    public void cursorsWalkEveryRowOnce() {
+        List<Integer> walked = new ArrayList<>();
+
+        String cursor = null;
+        int pages = 0;
+        do {
+            JpaJsonSearchResult<Person> result = search()
+                    .parse(TestData.json("{ 'after': " + after(cursor) + ", 'pageSize': 3, 'sort': [ { 'birthDate': 'ASC' } ] }"))
+                    .result();
+
+            walked.addAll(TestData.sequences(result.getValues()));
+            assertEquals(20L, result.getCount().longValue());
+
+            cursor = result.getNext();
+            ++pages;
+        }
+        while (cursor != null);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < TestData.PERSONS; ++i)
+            expected.add(i);
+
+        assertEquals(expected, walked);
+        assertEquals(7, pages);
+    }
+
+    @Test
+    public void cursorAppliesWithFilter() {
+        JpaJsonSearchResult<Person> first = search()
+                .parse(TestData.json("{ 'filter': [ { 'name': { '$eq': 'Mark' } } ], 'after': null, 'pageSize': 2, 'sort': [ { 'sequence': 'DESC' } ] }"))
+                .result();
+
+        assertEquals(Arrays.asList(18, 14), TestData.sequences(first.getValues()));
+        assertNotNull(first.getNext());
+
+        List<Person> second = search()
+                .parse(TestData.json("{ 'filter': [ { 'name': { '$eq': 'Mark' } } ], 'after': " + after(first.getNext()) + ", 'pageSize': 2, 'sort': [ { 'sequence': 'DESC' } ] }"))
+                .find();
+
+        assertEquals(Arrays.asList(10, 6), TestData.sequences(second));
+    }
+
+    @Test
+    public void fetchPlanAppliesToKeysetPages() {
+        List<Person> found = search()
+                .parse(TestData.json("{ 'fetch': [ 'pets' ], 'after': null, 'pageSize': 4, 'sort': [ { 'birthDate': 'ASC' } ] }"))
+                .find();
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), TestData.sequences(found));
+        for (Person person : found)
+            assertTrue(emf.getPersistenceUnitUtil().isLoaded(person, "pets"));
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void optionalSortIsRejected() {
+        search()
+                .parse(TestData.json("{ 'after': null, 'pageSize': 3, 'sort': [ { 'nickname': 'ASC' } ] }"))
+                .find();
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void entitySortIsRejected() {
+        search()
+                .parse(TestData.json("{ 'after': null, 'pageSize': 3, 'sort': [ { 'city': 'ASC' } ] }"))
+                .find();
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void pageAndCursorAreExclusive() {
+        search()
+                .parse(TestData.json("{ 'after': null, 'page': 1, 'pageSize': 3 }"));
+    }
+}
@@ -0,0 +1,101 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchLimitsTest extends AbstractJpaJsonSearchTest {
+
+    private JpaJsonSearch<Person> search(JpaJsonSearchLimits limits, String json) {
+        return search()
+                .limits(limits)
+                .parse(TestData.json(json));
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void oversizedPageIsRejected() {
+        search(JpaJsonSearchLimits.builder().maxPageSize(10).build(), "{ 'page': 0, 'pageSize': 50 }");
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void unpagedSearchIsRejected() {
+        search(JpaJsonSearchLimits.builder().maxPageSize(10).build(), "{ }");
+    }
+
+    @Test
+    public void oversizedPageIsClamped() {
+        JpaJsonSearchResult<Person> result = search(JpaJsonSearchLimits.builder().maxPageSize(10).clampPageSize(true).build(),
+                "{ 'page': 0, 'pageSize': 50 }").result();
+
+        assertEquals(10, result.getValues().size());
+        assertEquals(10, result.getPageSize());
+        assertEquals(20L, result.getCount().longValue());
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void deepOffsetIsRejected() {
+        search(JpaJsonSearchLimits.builder().maxOffset(10).build(), "{ 'page': 3, 'pageSize': 5 }");
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void tooManyConditionsAreRejected() {
+        search(JpaJsonSearchLimits.builder().maxConditions(2).build(),
+                "{ 'filter': [ { 'name': { '$eq': 'John' } }, { 'sequence': { '$gt': 1 } }, { 'surname': { '$neq': 'Smith' } } ] }");
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void deepFilterIsRejected() {
+        search(JpaJsonSearchLimits.builder().maxDepth(2).build(),
+                "{ 'filter': [ { '$or': [ { '$and': [ { '$or': [ { 'name': { '$eq': 'John' } } ] } ] } ] } ] }");
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void longListIsRejected() {
+        search(JpaJsonSearchLimits.builder().maxListSize(3).build(),
+                "{ 'filter': [ { 'sequence': { '$in': [ 1, 2, 3, 4 ] } } ] }");
+    }
+
+    @Test
+    public void allowedOperatorsAreAccepted() {
+        JpaJsonSearchLimits limits = JpaJsonSearchLimits.builder()
+                .allowOperators("surname", "$eq", "$sw")
+                .allowSorts("sequence")
+                .build();
+
+        assertEquals(2, search(limits, "{ 'filter': [ { 'surname': { '$sw': 'Jack' } } ], 'sort': [ { 'sequence': 'ASC' } ] }").find().size());
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void otherOperatorsAreRejected() {
+        search(JpaJsonSearchLimits.builder().allowOperators("surname", "$eq", "$sw").build(),
+                "{ 'filter': [ { 'surname': { '$ct': 'son' } } ] }");
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void otherSortsAreRejected() {
+        search(JpaJsonSearchLimits.builder().allowSorts("sequence").build(), "{ 'sort': [ { 'surname': 'ASC' } ] }");
+    }
+
+    @Test(expected = JpaJsonSearchException.class)
+    public void costlySearchIsRejected() {
+        search(JpaJsonSearchLimits.builder().maxCost(1).build(),
+                "{ 'filter': [ { 'name': { '$eq': 'John' } }, { 'sequence': { '$gt': 1 } } ] }");
+    }
+
+    @Test
+    public void costlySearchDegradesCount() {
+        JpaJsonSearchResult<Person> result = search(JpaJsonSearchLimits.builder().degradeCost(1, JpaJsonSearchCountStrategy.NONE).build(),
+                "{ 'filter': [ { 'name': { '$eq': 'John' } }, { 'sequence': { '$gt': 1 } } ], 'page': 0, 'pageSize': 10 }").result();
+
+        assertEquals(4, result.getValues().size());
+        assertNull(result.getCount());
+    }
+
+    @Test
+    public void cheapSearchKeepsCount() {
+        JpaJsonSearchResult<Person> result = search(JpaJsonSearchLimits.builder().degradeCost(10, JpaJsonSearchCountStrategy.NONE).build(),
+                "{ 'filter': [ { 'name': { '$eq': 'John' } } ], 'page': 0, 'pageSize': 10 }").result();
+
+        assertEquals(5L, result.getCount().longValue());
+    }
+}
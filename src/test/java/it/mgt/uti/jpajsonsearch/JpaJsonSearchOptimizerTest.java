@@ -0,0 +1,76 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchOptimizerTest extends AbstractJpaJsonSearchTest {
+
+    private List<Integer> find(String json, boolean optimize) {
+        return TestData.sequences(search()
+                .optimize(optimize)
+                .parse(TestData.json(json))
+                .find());
+    }
+
+    private String jpql(String json) {
+        return search()
+                .parse(TestData.json(json))
+                .compile()
+                .getJpql();
+    }
+
+    private void assertSameResults(String json, List<Integer> expected) {
+        assertEquals(expected, find(json, false));
+        assertEquals(expected, find(json, true));
+    }
+
+    @Test
+    public void equalitiesAreFoldedIntoIn() {
+        String json = "{ 'filter': [ { '$or': [ { 'sequence': { '$eq': 1 } }, { 'sequence': { '$eq': 5 } }, { 'sequence': { '$eq': 9 } } ] } ], 'sort': [ { 'sequence': 'ASC' } ] }";
+
+        assertSameResults(json, Arrays.asList(1, 5, 9));
+        assertTrue(jpql(json).contains(" IN "));
+        assertFalse(jpql(json).contains(" OR "));
+    }
+
+    @Test
+    public void rangesAreIntersected() {
+        String json = "{ 'filter': [ { 'sequence': { '$gte': 5 } }, { 'sequence': { '$lte': 10 } }, { 'sequence': { '$gt': 7 } } ], 'sort': [ { 'sequence': 'ASC' } ] }";
+
+        assertSameResults(json, Arrays.asList(8, 9, 10));
+        assertEquals(Arrays.asList("sequence_0", "sequence_1"), search().parse(TestData.json(json)).compile().getParameterNames());
+    }
+
+    @Test
+    public void disjointRangesMatchNothing() {
+        assertSameResults("{ 'filter': [ { 'sequence': { '$lt': 5 } }, { 'sequence': { '$gt': 10 } } ] }", Arrays.asList());
+    }
+
+    @Test
+    public void overlappingRangesAreJoined() {
+        String json = "{ 'filter': [ { '$or': [ { 'sequence': { '$bt': [ 2, 5 ] } }, { 'sequence': { '$bt': [ 4, 7 ] } } ] } ], 'sort': [ { 'sequence': 'ASC' } ] }";
+
+        assertSameResults(json, Arrays.asList(2, 3, 4, 5, 6, 7));
+        assertFalse(jpql(json).contains(" OR "));
+    }
+
+    @Test
+    public void nestedGroupsAndNullsArePruned() {
+        String json = "{ 'filter': [ { '$and': [ { '$and': [ { 'name': { '$eq': 'Mary' } } ] }, { 'surname': { '$eq': null } } ] }, { 'name': { '$eq': 'Mary' } } ], 'sort': [ { 'sequence': 'ASC' } ] }";
+
+        assertSameResults(json, Arrays.asList(3, 7, 11, 15, 19));
+        assertEquals(Arrays.asList("name_0"), search().parse(TestData.json(json)).compile().getParameterNames());
+    }
+
+    @Test
+    public void stringRangesAreKept() {
+        String json = "{ 'filter': [ { 'surname': { '$gte': 'B' } }, { 'surname': { '$gte': 'J' } } ], 'sort': [ { 'sequence': 'ASC' } ] }";
+
+        assertSameResults(json, Arrays.asList(0, 1, 4, 5, 6, 7, 10, 11, 14, 15, 16, 17));
+        assertEquals(Arrays.asList("surname_0", "surname_1"), search().parse(TestData.json(json)).compile().getParameterNames());
+    }
+}
@@ -0,0 +1,30 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchParseTest extends AbstractJpaJsonSearchTest {
+
+    @Test
+    public void streamedAndParsedFromInputStream() {
+        String json = "{ \"filter\": [ { \"sequence\": { \"$gte\": 15 } } ], \"sort\": [ { \"sequence\": \"DESC\" } ] }";
+
+        List<Integer> streamed;
+        try (Stream<Person> stream = search()
+                .parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))
+                .stream(2)) {
+            streamed = stream.map(Person::getSequence).collect(Collectors.toList());
+        }
+
+        assertEquals(Arrays.asList(19, 18, 17, 16, 15), streamed);
+        assertEquals(streamed, TestData.sequences(search(json).find()));
+    }
+}
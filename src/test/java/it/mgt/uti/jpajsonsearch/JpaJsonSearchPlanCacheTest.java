@@ -0,0 +1,38 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchPlanCacheTest extends AbstractJpaJsonSearchTest {
+
+    private static String range(int from, int to) {
+        return "{ 'filter': [ { 'sequence': { '$gte': " + from + " } }, { 'name': { '$neq': 'Jane' } }, { 'sequence': { '$lt': " + to + " } } ], 'sort': [ { 'sequence': 'ASC' } ] }";
+    }
+
+    @Test
+    public void sameShapeGivesSameJpql() {
+        JpaJsonSearchTemplate first = search().optimize(false).parse(TestData.json(range(0, 5))).compile();
+        JpaJsonSearchTemplate second = search().optimize(false).parse(TestData.json(range(10, 20))).compile();
+
+        assertEquals(first.getJpql(), second.getJpql());
+        assertEquals(first.getCountJpql(), second.getCountJpql());
+        assertEquals(Arrays.asList("sequence_0", "name_1", "sequence_2"), first.getParameterNames());
+        assertEquals(first.getParameterNames(), second.getParameterNames());
+    }
+
+    @Test
+    public void sameShapeHitsQueryPlanCache() {
+        Statistics statistics = emf.unwrap(SessionFactory.class).getStatistics();
+
+        assertEquals(Arrays.asList(0, 2, 3, 4), TestData.sequences(search(range(0, 5)).find()));
+        long hits = statistics.getQueryPlanCacheHitCount();
+
+        assertEquals(Arrays.asList(10, 11, 12, 14, 15, 16, 18, 19), TestData.sequences(search(range(10, 20)).find()));
+        assertTrue(statistics.getQueryPlanCacheHitCount() > hits);
+    }
+}
@@ -0,0 +1,86 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import javax.persistence.Tuple;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchProjectionTest extends AbstractJpaJsonSearchTest {
+
+    @Test
+    public void rowsHoldTheSelectedValues() {
+        List<Object[]> rows = search()
+                .parse(TestData.json("{ 'select': [ 'name', 'surname' ], 'filter': [ { 'sequence': { '$lt': 2 } } ], 'sort': [ { 'sequence': 'ASC' } ] }"))
+                .findRows();
+
+        assertEquals(2, rows.size());
+        assertArrayEquals(new Object[] { "John", "Johnson" }, rows.get(0));
+        assertArrayEquals(new Object[] { "Jane", "Smith" }, rows.get(1));
+    }
+
+    @Test
+    public void singleSelectionRowsAreArrays() {
+        List<Object[]> rows = search()
+                .parse(TestData.json("{ 'select': [ 'cityName' ], 'filter': [ { 'sequence': { '$eq': 4 } } ] }"))
+                .findRows();
+
+        assertEquals(1, rows.size());
+        assertArrayEquals(new Object[] { "Milan" }, rows.get(0));
+    }
+
+    @Test
+    public void distinctCountsSelectedRows() {
+        JpaJsonSearchResult<Object[]> result = search()
+                .distinct(true)
+                .parse(TestData.json("{ 'select': [ 'name' ], 'page': 0, 'pageSize': 3, 'sort': [ { 'name': 'ASC' } ] }"))
+                .resultRows();
+
+        assertEquals(3, result.getValues().size());
+        assertArrayEquals(new Object[] { "Jane" }, result.getValues().get(0));
+        assertEquals(4L, result.getCount().longValue());
+        assertTrue(result.getHasNext());
+    }
+
+    @Test
+    public void distinctCountsSelectedTuples() {
+        JpaJsonSearchResult<Object[]> result = search()
+                .distinct(true)
+                .parse(TestData.json("{ 'select': [ 'name', 'cityName' ], 'page': 0, 'pageSize': 5 }"))
+                .resultRows();
+
+        // Names repeat every 4 persons and cities every 3, so each pair repeats every 12
+        assertEquals(12L, result.getCount().longValue());
+        assertEquals(5, result.getValues().size());
+    }
+
+    @Test
+    public void tuplesAreAliasedByParameterName() {
+        List<Tuple> tuples = search()
+                .addParameter("order", "p.sequence", Integer.class)
+                .addParameter("value", "p.name", String.class)
+                .parse(TestData.json("{ 'select': [ 'order', 'value' ], 'filter': [ { 'sequence': { '$lt': 2 } } ], 'sort': [ { 'order': 'DESC' } ] }"))
+                .findTuples();
+
+        assertEquals(2, tuples.size());
+        assertEquals(1, tuples.get(0).get("order"));
+        assertEquals("Jane", tuples.get(0).get("value", String.class));
+        assertEquals(0, tuples.get(1).get("order"));
+        assertEquals("value", tuples.get(1).getElements().get(1).getAlias());
+
+        assertFalse(TestData.SCHEMA.hasParameter("order"));
+    }
+
+    @Test
+    public void projectedResultCountsMatchingRows() {
+        JpaJsonSearchResult<Tuple> result = search()
+                .parse(TestData.json("{ 'select': [ 'surname' ], 'filter': [ { 'cityName': { '$eq': 'Turin' } } ], 'page': 1, 'pageSize': 4, 'sort': [ { 'sequence': 'ASC' } ] }"))
+                .resultTuples();
+
+        assertEquals(6L, result.getCount().longValue());
+        assertEquals(2, result.getValues().size());
+        assertEquals("Wilson", result.getValues().get(0).get("surname"));
+        assertEquals("OXNeil", result.getValues().get(1).get("surname"));
+    }
+}
@@ -0,0 +1,42 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchReferenceTest extends AbstractJpaJsonSearchTest {
+
+    private Long cityId(String name) {
+        return em.createQuery("SELECT c.id FROM City c WHERE c.name = :name", Long.class)
+                .setParameter("name", name)
+                .getSingleResult();
+    }
+
+    @Test
+    public void referencesAreResolvedInBatch() {
+        String json = "{ 'filter': [ { 'city': { '$in': [ " + cityId("Rome") + ", " + cityId("Turin") + " ] } } ] }";
+
+        assertEquals(13L, search(json).count().longValue());
+        assertEquals(13L, search().referenceMode(JpaJsonSearch.ReferenceMode.ID).parse(TestData.json(json)).count().longValue());
+    }
+
+    @Test
+    public void referencesAreLoadedInChunks() {
+        String json = "{ 'filter': [ { 'city': { '$in': [ " + cityId("Rome") + ", " + cityId("Milan") + ", " + cityId("Turin") + " ] } } ] }";
+
+        assertEquals(20L, search().inListStrategy(JpaJsonSearchInListStrategy.chunked(2)).parse(TestData.json(json)).count().longValue());
+        assertEquals(20L, search().inListStrategy(JpaJsonSearchInListStrategy.PADDED).parse(TestData.json(json)).count().longValue());
+    }
+
+    @Test
+    public void referenceEqualityMatchesPath() {
+        List<Person> byReference = search("{ 'filter': [ { 'city': { '$eq': " + cityId("Milan") + " } } ], 'sort': [ { 'sequence': 'ASC' } ] }").find();
+        List<Person> byName = search("{ 'filter': [ { 'cityName': { '$eq': 'Milan' } } ], 'sort': [ { 'sequence': 'ASC' } ] }").find();
+
+        assertEquals(Arrays.asList(1, 4, 7, 10, 13, 16, 19), TestData.sequences(byReference));
+        assertEquals(TestData.ids(byName), TestData.ids(byReference));
+    }
+}
@@ -0,0 +1,138 @@
+package it.mgt.uti.jpajsonsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchReplicaRouterTest extends AbstractJpaJsonSearchTest {
+
+    private static EntityManagerFactory replica0;
+    private static EntityManagerFactory replica1;
+    private static EntityManagerFactory broken;
+
+    private final static JsonNode JOHNS = TestData.json("{ 'filter': [ { 'name': { '$eq': 'John' } } ], 'sort': [ { 'sequence': 'ASC' } ] }");
+
+    @BeforeClass
+    public static void setUpReplicas() {
+        replica0 = TestData.populate("router_replica0");
+        replica1 = TestData.populate("router_replica1");
+        broken = TestData.create("router_broken", false);
+    }
+
+    @AfterClass
+    public static void tearDownReplicas() {
+        broken.close();
+        replica1.close();
+        replica0.close();
+    }
+
+    private JpaJsonSearch<Person> search(JpaJsonSearchReplicaRouter router) {
+        return search()
+                .entityManagerFactory(emf)
+                .replicaRouter(router);
+    }
+
+    @Test
+    public void roundRobinSpreadsQueriesOverReplicas() {
+        JpaJsonSearchReplicaRouter router = new JpaJsonSearchReplicaRouter(Arrays.asList(replica0, replica1));
+
+        for (int i = 0; i < 4; ++i) {
+            List<Person> found = search(router).parse(JOHNS).find();
+
+            assertEquals(Arrays.asList(0, 4, 8, 12, 16), TestData.sequences(found));
+            for (Person person : found)
+                assertFalse(em.contains(person));
+        }
+
+        assertEquals(2, router.getReplicas().get(0).getExecutions());
+        assertEquals(2, router.getReplicas().get(1).getExecutions());
+        assertEquals(0, router.getReplicas().get(0).getInFlight());
+        assertEquals(0, router.getReplicas().get(1).getInFlight());
+        assertEquals(0, router.getFailovers());
+    }
+
+    // Every database is populated alike, so ids read on the primary identify the same rows on the replicas
+    @Test
+    public void referencesAreFilteredByIdOnReplicas() {
+        JpaJsonSearchReplicaRouter router = new JpaJsonSearchReplicaRouter(Arrays.asList(replica0));
+        Long milan = em.createQuery("SELECT c.id FROM City c WHERE c.name = 'Milan'", Long.class).getSingleResult();
+
+        List<Person> found = search(router)
+                .parse(TestData.json("{ 'filter': [ { 'city': { '$eq': " + milan + " } } ], 'sort': [ { 'sequence': 'ASC' } ] }"))
+                .find();
+
+        assertEquals(Arrays.asList(1, 4, 7, 10, 13, 16, 19), TestData.sequences(found));
+        for (Person person : found)
+            assertFalse(em.contains(person));
+        assertEquals(1, router.getReplicas().get(0).getExecutions());
+        assertEquals(0, router.getFailovers());
+    }
+
+    @Test
+    public void resultRoutesFindAndCount() {
+        JpaJsonSearchReplicaRouter router = new JpaJsonSearchReplicaRouter(Arrays.asList(replica0, replica1));
+
+        JpaJsonSearchResult<Person> result = search(router)
+                .parse(TestData.json("{ 'filter': [ { 'cityName': { '$eq': 'Rome' } } ], 'page': 0, 'pageSize': 3, 'sort': [ { 'sequence': 'ASC' } ] }"))
+                .result();
+
+        assertEquals(Arrays.asList(0, 3, 6), TestData.sequences(result.getValues()));
+        assertEquals(7L, result.getCount().longValue());
+        assertEquals(1, router.getReplicas().get(0).getExecutions());
+        assertEquals(1, router.getReplicas().get(1).getExecutions());
+    }
+
+    @Test
+    public void failingReplicaFailsOverToPrimary() {
+        JpaJsonSearchReplicaRouter router = new JpaJsonSearchReplicaRouter(Arrays.asList(broken, replica0));
+
+        List<Person> expected = search().parse(JOHNS).find();
+
+        List<Person> failedOver = search(router).parse(JOHNS).find();
+        List<Person> routed = search(router).parse(JOHNS).find();
+
+        assertEquals(TestData.ids(expected), TestData.ids(failedOver));
+        assertEquals(TestData.sequences(expected), TestData.sequences(routed));
+
+        JpaJsonSearchReplicaRouter.Replica failing = router.getReplicas().get(0);
+        assertEquals(1, failing.getExecutions());
+        assertEquals(1, failing.getFailures());
+        assertEquals(0, failing.getInFlight());
+
+        JpaJsonSearchReplicaRouter.Replica working = router.getReplicas().get(1);
+        assertEquals(1, working.getExecutions());
+        assertEquals(0, working.getFailures());
+
+        assertEquals(1, router.getFailovers());
+    }
+
+    @Test
+    public void requirePrimaryBypassesReplicas() {
+        JpaJsonSearchReplicaRouter router = new JpaJsonSearchReplicaRouter(Arrays.asList(replica0, replica1),
+                JpaJsonSearchBalancingPolicy.leastInFlight());
+
+        JpaJsonSearchResult<Person> result = search(router)
+                .requirePrimary(true)
+                .parse(JOHNS)
+                .result();
+
+        assertEquals(Arrays.asList(0, 4, 8, 12, 16), TestData.sequences(result.getValues()));
+        assertEquals(5L, result.getCount().longValue());
+
+        // Found on the caller's entity manager, so still managed
+        for (Person person : result.getValues())
+            assertTrue(em.contains(person));
+
+        for (JpaJsonSearchReplicaRouter.Replica replica : router.getReplicas())
+            assertEquals(0, replica.getExecutions());
+
+        assertEquals(0, router.getFailovers());
+    }
+}
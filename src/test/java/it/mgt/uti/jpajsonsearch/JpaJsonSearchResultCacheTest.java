@@ -0,0 +1,112 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchResultCacheTest extends AbstractJpaJsonSearchTest {
+
+    private final static String MARYS = "{ 'filter': [ { 'name': { '$eq': 'Mary' } } ], 'page': 0, 'pageSize': 10, 'sort': [ { 'sequence': 'ASC' } ] }";
+
+    private JpaJsonSearchResultCache resultCache;
+
+    @Before
+    public void setUpResultCache() {
+        resultCache = new JpaJsonSearchResultCache(100, 60000);
+    }
+
+    private JpaJsonSearch<Person> cachedSearch(String json) {
+        return search()
+                .entityManagerFactory(emf)
+                .resultCache(resultCache)
+                .parse(TestData.json(json));
+    }
+
+    @Test
+    public void pagesAreCachedDetached() {
+        List<Person> first = cachedSearch(MARYS).find();
+        List<Person> second = cachedSearch(MARYS).find();
+
+        assertEquals(TestData.ids(first), TestData.ids(second));
+        assertEquals(5, second.size());
+        assertEquals(1, resultCache.getMisses());
+        assertEquals(1, resultCache.getHits());
+
+        for (Person person : second)
+            assertFalse(em.contains(person));
+    }
+
+    @Test
+    public void otherValuesMiss() {
+        cachedSearch(MARYS).find();
+        List<Person> found = cachedSearch(MARYS.replace("Mary", "Mark")).find();
+
+        assertEquals(5, found.size());
+        assertEquals(0, resultCache.getHits());
+        assertEquals(2, resultCache.getMisses());
+    }
+
+    @Test
+    public void resultsCacheCountsToo() {
+        JpaJsonSearchResult<Person> first = cachedSearch(MARYS).result();
+        JpaJsonSearchResult<Person> second = cachedSearch(MARYS).result();
+
+        assertEquals(5L, first.getCount().longValue());
+        assertEquals(5L, second.getCount().longValue());
+        assertEquals(TestData.ids(first.getValues()), TestData.ids(second.getValues()));
+        assertEquals(2, resultCache.getHits());
+    }
+
+    @Test
+    public void invalidationEvictsTheType() {
+        cachedSearch(MARYS).find();
+        resultCache.invalidate(Person.class);
+        cachedSearch(MARYS).find();
+
+        assertEquals(0, resultCache.getHits());
+        assertEquals(2, resultCache.getMisses());
+    }
+
+    @Test
+    public void withoutFactoryOnlyCountsAreCached() {
+        JpaJsonSearch<Person> first = search().resultCache(resultCache).parse(TestData.json(MARYS));
+        assertEquals(5L, first.count().longValue());
+        List<Person> managed = first.find();
+
+        JpaJsonSearch<Person> second = search().resultCache(resultCache).parse(TestData.json(MARYS));
+        assertEquals(5L, second.count().longValue());
+        second.find();
+
+        assertEquals(1, resultCache.getHits());
+        for (Person person : managed)
+            assertTrue(em.contains(person));
+    }
+
+    // References are loaded by each search's own entity manager, instances of the same entity must share the entry
+    @Test
+    public void referencedEntitiesAreKeyedById() {
+        Long milan = em.createQuery("SELECT c.id FROM City c WHERE c.name = 'Milan'", Long.class).getSingleResult();
+        String json = "{ 'filter': [ { 'city': { '$eq': " + milan + " } } ] }";
+
+        assertEquals(7L, cachedSearch(json).count().longValue());
+
+        EntityManager other = emf.createEntityManager();
+        try {
+            assertEquals(7L, TestData.search(other)
+                    .entityManagerFactory(emf)
+                    .resultCache(resultCache)
+                    .parse(TestData.json(json))
+                    .count()
+                    .longValue());
+        }
+        finally {
+            other.close();
+        }
+
+        assertEquals(1, resultCache.getHits());
+    }
+}
@@ -0,0 +1,53 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchStreamTest extends AbstractJpaJsonSearchTest {
+
+    private City city(String name) {
+        return em.createQuery("SELECT c FROM City c WHERE c.name = :name", City.class)
+                .setParameter("name", name)
+                .getSingleResult();
+    }
+
+    @Test
+    public void chunksCoverEveryRow() {
+        List<Integer> sizes = new ArrayList<>();
+        search("{ 'filter': [ { 'sequence': { '$lt': 7 } } ] }")
+                .forEachChunk(TestData::sequences, chunk -> sizes.add(chunk.size()), 3);
+
+        assertEquals(Arrays.asList(3, 3, 1), sizes);
+    }
+
+    @Test
+    public void forEachDetachesOnlyEmittedEntities() {
+        City rome = city("Rome");
+
+        List<Person> emitted = new ArrayList<>();
+        search("{ 'filter': [ { 'sequence': { '$lt': 4 } } ], 'sort': [ { 'sequence': 'ASC' } ] }")
+                .forEach(emitted::add, 2);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), TestData.sequences(emitted));
+        assertTrue(em.contains(rome));
+        for (Person person : emitted)
+            assertFalse(em.contains(person));
+    }
+
+    @Test
+    public void forEachChunkDetachesOnlyEmittedEntities() {
+        City rome = city("Rome");
+
+        List<Integer> sequences = new ArrayList<>();
+        search("{ 'filter': [ { 'sequence': { '$lt': 4 } } ], 'sort': [ { 'sequence': 'ASC' } ] }")
+                .forEachChunk(TestData::sequences, sequences::addAll, 2);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), sequences);
+        assertTrue(em.contains(rome));
+    }
+}
@@ -0,0 +1,29 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchTemplateCacheTest extends AbstractJpaJsonSearchTest {
+
+    private static String range(int from, int to) {
+        return "{ 'filter': [ { 'sequence': { '$gte': " + from + " } }, { 'name': { '$neq': 'Jane' } }, { 'sequence': { '$lt': " + to + " } } ], 'sort': [ { 'sequence': 'ASC' } ] }";
+    }
+
+    @Test
+    public void templateCacheReusesShapes() {
+        JpaJsonSearchTemplateCache templateCache = new JpaJsonSearchTemplateCache(10);
+
+        List<Person> first = search().templateCache(templateCache).parse(TestData.json(range(0, 5))).find();
+        List<Person> second = search().templateCache(templateCache).parse(TestData.json(range(4, 9))).find();
+
+        assertEquals(Arrays.asList(0, 2, 3, 4), TestData.sequences(first));
+        assertEquals(Arrays.asList(4, 6, 7, 8), TestData.sequences(second));
+        assertEquals(1, templateCache.getSize());
+        assertEquals(1, templateCache.getMisses());
+        assertEquals(1, templateCache.getHits());
+    }
+}
@@ -0,0 +1,54 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchTemplateTest extends AbstractJpaJsonSearchTest {
+
+    private static String range(int from, int to) {
+        return "{ 'filter': [ { 'sequence': { '$gte': " + from + " } }, { 'name': { '$neq': 'Jane' } }, { 'sequence': { '$lt': " + to + " } } ], 'sort': [ { 'sequence': 'ASC' } ] }";
+    }
+
+    @Test
+    public void templateBindsOtherValues() {
+        JpaJsonSearchTemplate template = search(range(0, 5)).compile();
+
+        JpaJsonSearchResult<Person> built = search(range(10, 20)).result();
+        JpaJsonSearchResult<Person> bound = search().template(template).parse(TestData.json(range(10, 20))).result();
+
+        assertEquals(Arrays.asList(10, 11, 12, 14, 15, 16, 18, 19), TestData.sequences(bound.getValues()));
+        assertEquals(TestData.ids(built.getValues()), TestData.ids(bound.getValues()));
+        assertEquals(8L, bound.getCount().longValue());
+    }
+
+    @Test
+    public void templateOfAnotherShapeIsIgnored() {
+        JpaJsonSearchTemplate template = search(range(0, 5)).compile();
+
+        List<Person> found = search()
+                .template(template)
+                .parse(TestData.json("{ 'filter': [ { 'surname': { '$eq': 'Smith' } } ] }"))
+                .find();
+
+        assertEquals(2, found.size());
+    }
+
+    @Test
+    public void executionProfileIsPartOfTheShape() {
+        String shape = search(range(0, 5)).compile().getShape();
+
+        assertNotEquals(shape, search().executionProfile(JpaJsonSearchExecutionProfile.READ_ONLY).parse(TestData.json(range(0, 5))).compile().getShape());
+        assertNotEquals(shape, search().executionProfile(JpaJsonSearchExecutionProfile.builder().fetchSize(50).build()).parse(TestData.json(range(0, 5))).compile().getShape());
+    }
+
+    @Test
+    public void graphModeIsPartOfTheShape() {
+        String json = "{ 'fetch': [ 'city' ], 'filter': [ { 'sequence': { '$lt': 5 } } ] }";
+
+        assertNotEquals(search(json).compile().getShape(), search().loadGraph(true).parse(TestData.json(json)).compile().getShape());
+    }
+}
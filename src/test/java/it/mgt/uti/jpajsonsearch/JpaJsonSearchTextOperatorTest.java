@@ -0,0 +1,65 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Each surname is shared by two persons; "O_Neil", "OXNeil", "Cent%Per" and "Bang!Er" hold the LIKE wildcards and the
+ * escape character.
+ */
+public class JpaJsonSearchTextOperatorTest extends AbstractJpaJsonSearchTest {
+
+    private long count(String operator, String value) {
+        return search()
+                .parse(TestData.json("{ 'filter': [ { 'surname': { '" + operator + "': '" + value + "' } } ] }"))
+                .count()
+                .longValue();
+    }
+
+    @Test
+    public void containsEscapesWildcards() {
+        assertEquals(2, count("$ct", "O_N"));
+        assertEquals(2, count("$ct", "%"));
+        assertEquals(2, count("$ct", "!E"));
+        assertEquals(18, count("$nct", "O_N"));
+    }
+
+    @Test
+    public void legacyWildcardOperatorsKeepWildcards() {
+        assertEquals(4, count("$lkw", "O_N"));
+        assertEquals(20, count("$lkw", "%"));
+        assertEquals(16, count("$nlkw", "O_N"));
+        assertEquals(8, count("$lk", "%son"));
+    }
+
+    @Test
+    public void startsAndEndsWith() {
+        assertEquals(2, count("$sw", "John"));
+        assertEquals(2, count("$sw", "O_"));
+        assertEquals(8, count("$ew", "son"));
+    }
+
+    @Test
+    public void caseInsensitive() {
+        assertEquals(2, count("$eqi", "SMITH"));
+        assertEquals(2, count("$swi", "john"));
+        assertEquals(8, count("$ewi", "SON"));
+        assertEquals(4, count("$cti", "NEIL"));
+        assertEquals(16, count("$ncti", "neil"));
+    }
+
+    @Test
+    public void builderEscapesToo() {
+        JpaJsonSearch<Person> search = search();
+        search.filter().contains("surname", "t%P");
+
+        List<Person> found = search.find();
+
+        assertEquals(2, found.size());
+        for (Person person : found)
+            assertEquals("Cent%Per", person.getSurname());
+    }
+}
@@ -0,0 +1,40 @@
+package it.mgt.uti.jpajsonsearch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class JpaJsonSearchTwoPhaseTest extends AbstractJpaJsonSearchTest {
+
+    private JpaJsonSearch<Person> petsSearch(String json) {
+        return search()
+                .from("Person p JOIN p.pets pt")
+                .distinct(true)
+                .twoPhase(true)
+                .parse(TestData.json(json));
+    }
+
+    @Test
+    public void twoPhasePagingCountsDistinctRoots() {
+        JpaJsonSearchResult<Person> result = petsSearch("{ 'filter': [ { 'petAge': { '$gte': 0 } } ], 'page': 0, 'pageSize': 5, 'sort': [ { 'sequence': 'ASC' } ] }")
+                .result();
+
+        assertEquals(Arrays.asList(1, 2, 4, 5, 7), TestData.sequences(result.getValues()));
+        assertEquals(13L, result.getCount().longValue());
+    }
+
+    // Persons with two pets have two ages, each is sorted once by the greatest of them
+    @Test
+    public void twoPhasePagingSortsThroughToManyJoins() {
+        JpaJsonSearchResult<Person> first = petsSearch("{ 'page': 0, 'pageSize': 5, 'sort': [ { 'petAge': 'DESC' } ] }")
+                .result();
+        JpaJsonSearchResult<Person> second = petsSearch("{ 'page': 1, 'pageSize': 5, 'sort': [ { 'petAge': 'DESC' } ] }")
+                .result();
+
+        assertEquals(Arrays.asList(19, 17, 16, 14, 13), TestData.sequences(first.getValues()));
+        assertEquals(Arrays.asList(11, 10, 8, 7, 5), TestData.sequences(second.getValues()));
+        assertEquals(13L, first.getCount().longValue());
+    }
+}
@@ -0,0 +1,82 @@
+package it.mgt.uti.jpajsonsearch;
+
+import javax.persistence.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+@Entity
+public class Person {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    @Basic(optional = false)
+    private String name;
+
+    @Basic(optional = false)
+    private String surname;
+
+    private String nickname;
+
+    @Basic(optional = false)
+    private Integer sequence;
+
+    @Basic(optional = false)
+    private LocalDate birthDate;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    private City city;
+
+    @OneToMany(mappedBy = "owner")
+    private List<Pet> pets = new ArrayList<>();
+
+    public Person() {
+    }
+
+    public Person(String name, String surname, String nickname, Integer sequence, LocalDate birthDate, City city) {
+        this.name = name;
+        this.surname = surname;
+        this.nickname = nickname;
+        this.sequence = sequence;
+        this.birthDate = birthDate;
+        this.city = city;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSurname() {
+        return surname;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    public void setNickname(String nickname) {
+        this.nickname = nickname;
+    }
+
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    public LocalDate getBirthDate() {
+        return birthDate;
+    }
+
+    public City getCity() {
+        return city;
+    }
+
+    public List<Pet> getPets() {
+        return pets;
+    }
+}
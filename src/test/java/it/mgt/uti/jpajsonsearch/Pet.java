@@ -0,0 +1,43 @@
+package it.mgt.uti.jpajsonsearch;
+
+import javax.persistence.*;
+
+@Entity
+public class Pet {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    private String name;
+
+    private Integer age;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    private Person owner;
+
+    public Pet() {
+    }
+
+    public Pet(String name, Integer age, Person owner) {
+        this.name = name;
+        this.age = age;
+        this.owner = owner;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Integer getAge() {
+        return age;
+    }
+
+    public Person getOwner() {
+        return owner;
+    }
+}
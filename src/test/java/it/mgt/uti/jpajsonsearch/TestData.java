@@ -0,0 +1,128 @@
+package it.mgt.uti.jpajsonsearch;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic dataset shared by the tests, each database name being a distinct embedded HSQLDB instance.
+ *
+ * <p>Person {@code i} of {@link #PERSONS} has name {@code NAMES[i % 4]}, surname {@code SURNAMES[i % 10]}, sequence
+ * {@code i}, a nickname only when {@code i} is odd, a birth date shared with one other person, city
+ * {@code CITIES[i % 3]} and {@code i % 3} pets, a "Rex" and then a "Fido".
+ */
+final class TestData {
+
+    private final static ObjectMapper objectMapper = new ObjectMapper()
+            .enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES);
+
+    final static String[] NAMES = { "John", "Jane", "Mark", "Mary" };
+    final static String[] SURNAMES = { "Johnson", "Smith", "Anderson", "Brown", "Wilson", "Jackson", "O_Neil", "OXNeil",
+            "Cent%Per", "Bang!Er" };
+    final static String[] CITIES = { "Rome", "Milan", "Turin" };
+    final static int PERSONS = 20;
+
+    final static JpaJsonSearchSchema<Person> SCHEMA = JpaJsonSearchSchema.builder(Person.class)
+            .alias("p")
+            .from("Person p")
+            .addParameter("id", "p.id", Long.class)
+            .addParameter("name", "p.name", String.class)
+            .addParameter("surname", "p.surname", String.class)
+            .addParameter("nickname", "p.nickname", String.class)
+            .addParameter("sequence", "p.sequence", Integer.class)
+            .addParameter("birthDate", "p.birthDate", LocalDate.class)
+            .addParameter("city", "p.city", City.class)
+            .addParameter("cityName", "p.city.name", String.class)
+            .addCollectionParameter("pets", "p.pets", "pt")
+            .addParameter("petName", "pt.name", String.class)
+            .addParameter("petAge", "pt.age", Integer.class)
+            .build();
+
+    private TestData() {
+    }
+
+    static JpaJsonSearch<Person> search(EntityManager em) {
+        return new JpaJsonSearch<>(em, SCHEMA);
+    }
+
+    // Single quotes keep the documents readable in Java strings
+    static JsonNode json(String json) {
+        try {
+            return objectMapper.readTree(json);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    static LocalDate birthDate(int i) {
+        return LocalDate.of(1980, 1, 1).plusYears(i / 2);
+    }
+
+    static List<Long> ids(List<Person> persons) {
+        List<Long> ids = new ArrayList<>(persons.size());
+        for (Person person : persons)
+            ids.add(person.getId());
+
+        return ids;
+    }
+
+    static List<Integer> sequences(List<Person> persons) {
+        List<Integer> sequences = new ArrayList<>(persons.size());
+        for (Person person : persons)
+            sequences.add(person.getSequence());
+
+        return sequences;
+    }
+
+    // Tables are only created when the schema is, a database without them fails every query
+    static EntityManagerFactory create(String database, boolean schema) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.url", "jdbc:hsqldb:mem:" + database);
+        if (!schema)
+            properties.put("hibernate.hbm2ddl.auto", "none");
+
+        return Persistence.createEntityManagerFactory("test", properties);
+    }
+
+    static EntityManagerFactory populate(String database) {
+        EntityManagerFactory emf = create(database, true);
+
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+
+            City[] cities = new City[CITIES.length];
+            for (int i = 0; i < CITIES.length; ++i) {
+                cities[i] = new City(CITIES[i]);
+                em.persist(cities[i]);
+            }
+
+            for (int i = 0; i < PERSONS; ++i) {
+                Person person = new Person(NAMES[i % NAMES.length], SURNAMES[i % SURNAMES.length],
+                        i % 2 == 1 ? "Nick " + i : null, i, birthDate(i), cities[i % CITIES.length]);
+                em.persist(person);
+
+                for (int j = 0; j < i % 3; ++j)
+                    em.persist(new Pet(j == 0 ? "Rex" : "Fido", i + j, person));
+            }
+
+            em.getTransaction().commit();
+        }
+        finally {
+            em.close();
+        }
+
+        return emf;
+    }
+}